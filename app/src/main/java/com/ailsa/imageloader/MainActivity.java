@@ -143,7 +143,6 @@ public class MainActivity extends Activity {
             "https://lh4.googleusercontent.com/-PDT167_xRdA/URqvK36mLcI/AAAAAAAAAbs/oi2ik9QseMI/s160-c/Windmills.jpg",
             "https://lh5.googleusercontent.com/-kI_QdYx7VlU/URqvLXCB6gI/AAAAAAAAAbs/N31vlZ6u89o/s160-c/Yet%252520Another%252520Rockaway%252520Sunset.jpg",
             "https://lh4.googleusercontent.com/-e9NHZ5k5MSs/URqvMIBZjtI/AAAAAAAAAbs/1fV810rDNfQ/s160-c/Yosemite%252520Tree.jpg" };
-    private boolean isScroll = false;
     private ImageLoader imageLoader;
     private int imageWidth;
     @Override
@@ -160,22 +159,34 @@ public class MainActivity extends Activity {
         mGridView.setOnScrollListener(new AbsListView.OnScrollListener() {
             @Override
             public void onScrollStateChanged(AbsListView view, int scrollState) {
-                if(scrollState == SCROLL_STATE_IDLE){
-                    isScroll = false;
-                    mAdapter.setIsScroll(isScroll);
-                    mAdapter.notifyDataSetChanged();
-                } else{
-                    isScroll = true;
-                    mAdapter.setIsScroll(isScroll);
-                }
+                mAdapter.onScrollStateChanged(scrollState);
             }
 
             @Override
             public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
-
+                mAdapter.setVisibleRange(firstVisibleItem, visibleItemCount);
             }
         });
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        imageLoader.resizeMemoryCache(0);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        //切到后台时只保留少量图片，减少被系统杀死的可能
+        imageLoader.resizeMemoryCache((int) (Runtime.getRuntime().maxMemory() / 32));
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        imageLoader.close();
+    }
+
 }
 
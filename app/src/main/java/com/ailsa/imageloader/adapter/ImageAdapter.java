@@ -10,30 +10,67 @@ import android.widget.ImageView;
 
 import com.ailsa.imageloader.R;
 import com.ailsa.imageloader.imageloader.ImageLoader;
+import com.ailsa.imageloader.imageloader.ScrollPrefetcher;
 
-public class ImageAdapter extends BaseAdapter {
+public class ImageAdapter extends BaseAdapter implements ScrollPrefetcher.UrlSource {
     private Drawable defaultDrawable;
     private String[] imageUrl;
     private LayoutInflater inflater;
     private ImageLoader imageLoader;
-    private boolean isScroll = false;
     private int imageWidth;
+    private int firstVisible = 0;
+    private int visibleCount = 0;
+    private ScrollPrefetcher prefetcher;
     public ImageAdapter(Context context, String[] url, ImageLoader loader, int width){
         imageUrl = url;
         imageLoader = loader;
         inflater = LayoutInflater.from(context);
         defaultDrawable = context.getResources().getDrawable(R.mipmap.image_default);
         imageWidth = width;
+        prefetcher = new ScrollPrefetcher(loader, this, width, width);
     }
 
-    public void setIsScroll(boolean scroll){
-        isScroll = scroll;
+    /**
+     * @param scrollState AbsListView.OnScrollListener中的SCROLL_STATE_*
+     */
+    public void onScrollStateChanged(int scrollState){
+        prefetcher.onScrollStateChanged(scrollState);
+    }
+
+    /**
+     * 可见区域变化时，提高进入可见区域的图片的加载优先级，降低离开可见区域的，
+     * 并沿滑动方向预加载之后的图片
+     */
+    public void setVisibleRange(int first, int count){
+        if(first == firstVisible && count == visibleCount){
+            return ;
+        }
+        int oldEnd = Math.min(firstVisible + visibleCount, imageUrl.length);
+        for(int i = firstVisible; i < oldEnd; i++){
+            if(i < first || i >= first + count){
+                imageLoader.setPriority(imageUrl[i], ImageLoader.PRIORITY_LOW);
+            }
+        }
+        int newEnd = Math.min(first + count, imageUrl.length);
+        for(int i = first; i < newEnd; i++){
+            if(i < firstVisible || i >= oldEnd){
+                imageLoader.setPriority(imageUrl[i], ImageLoader.PRIORITY_HIGH);
+            }
+        }
+        firstVisible = first;
+        visibleCount = count;
+        prefetcher.onScroll(first, count);
     }
     @Override
     public int getCount() {
         return imageUrl.length;
     }
 
+    @Override
+    public String getUrl(int position) {
+        return imageUrl[position];
+    }
+
     @Override
     public Object getItem(int position) {
         return imageUrl[position];
@@ -59,14 +96,12 @@ public class ImageAdapter extends BaseAdapter {
         String tag = (String)imageView.getTag();
         String url = imageUrl[position];
         if(!url.equals(tag)){
-            //加载默认显示图片
+            //ImageView被复用，取消之前的加载请求并显示默认图片
+            imageLoader.cancelRequest(imageView);
             imageView.setImageDrawable(defaultDrawable);
         }
-        if(!isScroll){
-            //未滚动，可加载图片
-            imageView.setTag(url);
-            imageLoader.bindBitmap(url, viewHolder.imageView, imageWidth, imageWidth);
-        }
+        //滑动时也直接加载，内存缓存中的图片立即显示，快速滑动时需要下载的图片由ImageLoader暂缓
+        imageLoader.bindBitmap(url, viewHolder.imageView, imageWidth, imageWidth, ImageLoader.PRIORITY_HIGH);
         return convertView;
     }
     class ViewHolder{
@@ -0,0 +1,121 @@
+package com.ailsa.imageloader.imageloader;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * 可复用Bitmap的缓存池，解码时通过BitmapFactory.Options.inBitmap复用其中的内存，
+ * 减少滑动时频繁分配Bitmap引起的GC。
+ * KITKAT及以上只要内存足够大且Config相同即可复用，之前的版本要求宽高完全一致且inSampleSize为1。
+ */
+
+public class BitmapPool {
+
+    private final int mMaxSize;
+    private int mSize;
+    //按放入的先后排列，超出容量时先丢弃最早放入的
+    private final LinkedList<Bitmap> mBitmaps = new LinkedList<Bitmap>();
+
+    /**
+     * @param maxSize 缓存池的最大字节数
+     */
+    public BitmapPool(int maxSize){
+        mMaxSize = maxSize;
+    }
+
+    public synchronized void put(Bitmap bitmap){
+        if(bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()){
+            return ;
+        }
+        int size = getBitmapSize(bitmap);
+        if(size > mMaxSize){
+            return ;
+        }
+        mBitmaps.addLast(bitmap);
+        mSize += size;
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * 丢弃最早放入的Bitmap直到总大小不超过maxSize
+     */
+    public synchronized void trimToSize(int maxSize){
+        while(mSize > maxSize && !mBitmaps.isEmpty()){
+            Bitmap eldest = mBitmaps.removeFirst();
+            mSize -= getBitmapSize(eldest);
+        }
+    }
+
+    public int maxSize(){
+        return mMaxSize;
+    }
+
+    /**
+     * 取出一个可用于解码width*height图片的Bitmap，没有合适的则返回null
+     *
+     * @param sampleSize 解码时使用的inSampleSize
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config, int sampleSize){
+        if(config == null){
+            config = Bitmap.Config.ARGB_8888;
+        }
+        Bitmap candidate = null;
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT){
+            int required = width * height * getBytesPerPixel(config);
+            //选取满足大小要求的最小的Bitmap，避免大图被小图占用
+            for(Bitmap bitmap : mBitmaps){
+                int size = bitmap.getAllocationByteCount();
+                if(size >= required && bitmap.getConfig() == config
+                        && (candidate == null || size < candidate.getAllocationByteCount())){
+                    candidate = bitmap;
+                }
+            }
+        } else if(sampleSize == 1){
+            for(Bitmap bitmap : mBitmaps){
+                if(bitmap.getWidth() == width && bitmap.getHeight() == height
+                        && bitmap.getConfig() == config){
+                    candidate = bitmap;
+                    break;
+                }
+            }
+        }
+        if(candidate != null){
+            remove(candidate);
+        }
+        return candidate;
+    }
+
+    public synchronized void clear(){
+        mBitmaps.clear();
+        mSize = 0;
+    }
+
+    private void remove(Bitmap bitmap){
+        for(Iterator<Bitmap> i = mBitmaps.iterator(); i.hasNext(); ){
+            if(i.next() == bitmap){
+                i.remove();
+                mSize -= getBitmapSize(bitmap);
+                return ;
+            }
+        }
+    }
+
+    public static int getBitmapSize(Bitmap bitmap){
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT){
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    public static int getBytesPerPixel(Bitmap.Config config){
+        if(config == Bitmap.Config.ARGB_8888){
+            return 4;
+        } else if(config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444){
+            return 2;
+        }
+        return 1;
+    }
+}
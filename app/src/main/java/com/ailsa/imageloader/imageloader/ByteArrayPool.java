@@ -0,0 +1,71 @@
+package com.ailsa.imageloader.imageloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * 可复用的byte[]缓存池，下载和读取时的缓冲区从这里取，用完后归还，
+ * 避免每张图片都分配新的缓冲区。
+ * 超出容量时丢弃最早归还的缓冲区。
+ */
+
+public class ByteArrayPool {
+
+    private static final Comparator<byte[]> BUF_COMPARATOR = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] lhs, byte[] rhs) {
+            return lhs.length - rhs.length;
+        }
+    };
+
+    private final int mSizeLimit;
+    private int mCurrentSize = 0;
+    //按归还的先后排列
+    private final List<byte[]> mBuffersByLastUse = new LinkedList<byte[]>();
+    //按长度排列，便于查找
+    private final List<byte[]> mBuffersBySize = new ArrayList<byte[]>(64);
+
+    /**
+     * @param sizeLimit 缓存池中缓冲区的最大总字节数
+     */
+    public ByteArrayPool(int sizeLimit){
+        mSizeLimit = sizeLimit;
+    }
+
+    /**
+     * 返回一个长度不小于len的缓冲区，池中没有时新分配
+     */
+    public synchronized byte[] getBuf(int len){
+        for(int i = 0; i < mBuffersBySize.size(); i++){
+            byte[] buf = mBuffersBySize.get(i);
+            if(buf.length >= len){
+                mCurrentSize -= buf.length;
+                mBuffersBySize.remove(i);
+                mBuffersByLastUse.remove(buf);
+                return buf;
+            }
+        }
+        return new byte[len];
+    }
+
+    public synchronized void returnBuf(byte[] buf){
+        if(buf == null || buf.length > mSizeLimit){
+            return ;
+        }
+        mBuffersByLastUse.add(buf);
+        int pos = Collections.binarySearch(mBuffersBySize, buf, BUF_COMPARATOR);
+        if(pos < 0){
+            pos = -pos - 1;
+        }
+        mBuffersBySize.add(pos, buf);
+        mCurrentSize += buf.length;
+        while(mCurrentSize > mSizeLimit){
+            byte[] eldest = mBuffersByLastUse.remove(0);
+            mBuffersBySize.remove(eldest);
+            mCurrentSize -= eldest.length;
+        }
+    }
+}
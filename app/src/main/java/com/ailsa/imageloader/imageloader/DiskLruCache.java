@@ -17,8 +17,11 @@
 package com.ailsa.imageloader.imageloader;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.BufferedWriter;
 import java.io.Closeable;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -31,21 +34,34 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Array;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
 /**
  ******************************************************************************
@@ -100,6 +116,16 @@ import java.util.concurrent.TimeUnit;
 public final class DiskLruCache implements Closeable {
     static final String JOURNAL_FILE = "journal";
     static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String JOURNAL_INDEX = "journal.idx";
+    static final String JOURNAL_INDEX_TMP = "journal.idx.tmp";
+    static final int INDEX_MAGIC = 0x44495832; // "DIX2"
+    /** A checkpoint is written once the journal has grown this much past the last one. */
+    static final long CHECKPOINT_INTERVAL = 256 * 1024;
+    /** Number of journal bytes before the checkpoint offset covered by its CRC. */
+    private static final int INDEX_JOURNAL_CRC_BYTES = 64;
+    static final String SEGMENT_PREFIX = "segment.";
+    /** Segments stop accepting entries once they reach this size. */
+    static final long SEGMENT_SIZE = 4 * 1024 * 1024;
     static final String MAGIC = "libcore.io.DiskLruCache";
     static final String VERSION_1 = "1";
     static final long ANY_SEQUENCE_NUMBER = -1;
@@ -111,6 +137,33 @@ public final class DiskLruCache implements Closeable {
     private static final Charset UTF_8 = Charset.forName("UTF-8");
     private static final int IO_BUFFER_SIZE = 8 * 1024;
 
+    /**
+     * Flush the journal after every record. Every DIRTY record reaches the
+     * filesystem before the files it announces are created.
+     */
+    public static final int DURABILITY_SYNC = 0;
+    /**
+     * Buffer journal records and flush them together, either after
+     * {@link #GROUP_COMMIT_DELAY_MILLIS} or once {@link #GROUP_COMMIT_SIZE}
+     * characters are pending. A crash may lose the most recent records; files
+     * left behind by those edits are deleted when the cache is next opened.
+     * Committing an edit still flushes the pending batch, including the edit's
+     * DIRTY record, before its values are published.
+     */
+    public static final int DURABILITY_GROUP_COMMIT = 1;
+    static final long GROUP_COMMIT_DELAY_MILLIS = 100;
+    static final int GROUP_COMMIT_SIZE = 4 * 1024;
+
+    /** Flushes group-committed journals of every open cache. */
+    private static final ScheduledExecutorService journalCommitExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "DiskLruCache journal");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     /*
      * This cache uses a journal file named "journal". A typical journal file
      * looks like this:
@@ -149,19 +202,77 @@ public final class DiskLruCache implements Closeable {
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * With DURABILITY_GROUP_COMMIT records are written in batches, so a crash
+     * can lose a DIRTY record whose files were already created, or the CLEAN
+     * record of a published edit. Files that don't belong to a readable entry
+     * after replaying the journal are therefore deleted when the cache is
+     * opened, which restores the guarantees of the DIRTY/CLEAN protocol.
+     *
+     * Reads don't take the cache's lock. Entries live in a concurrent map and
+     * LRU order is kept as an access stamp per entry rather than as the order
+     * of a LinkedHashMap; eviction and journal compaction sort by that stamp.
+     * A READ record written while the journal is being compacted may be lost,
+     * which only makes the recovered LRU order slightly less precise.
+     *
+     * Replaying a long text journal makes opening a large cache slow, so the
+     * cache periodically checkpoints its entries into a binary index,
+     * "journal.idx". The index records the journal offset it covers and a CRC
+     * of the journal bytes just before that offset. Opening the cache maps the
+     * index and replays only the journal tail after the offset; if the index
+     * is missing, corrupt or doesn't match the journal, the whole journal is
+     * replayed as before. The index is written to "journal.idx.tmp" and
+     * renamed into place. The sweep for orphaned files runs in the background
+     * after the cache has opened.
+     *
+     * Index layout, big endian:
+     *     int magic ("DIX2"), int appVersion, int valueCount, long journalOffset,
+     *     int journalCrc, int entryCount,
+     *     entryCount * (short keyLength, byte[] key, long[valueCount] lengths,
+     *                   int segment, long segmentOffset),
+     *     int crc
+     * The trailing crc is a CRC32 of every byte before it. segment is -1 for
+     * entries stored as files. Entries are written from least to most
+     * recently used.
+     *
+     * When the cache is opened with a pack threshold, entries whose values
+     * total at most that many bytes are not stored as files. Their values
+     * are appended back to back to a segment file, "segment.N", and read
+     * through a memory-mapped buffer. Their CLEAN records carry the location
+     * as a trailing "@segment:offset" token, e.g.
+     *     CLEAN 3400330d1dfc7f3f7f4b8d4d803dfcf6 832 21054 @3:65536
+     * Replaced and removed entries leave dead space in their segment. Once a
+     * full segment is more than half dead, its live entries are copied to the
+     * active segment, each with a new CLEAN record, and the segment is
+     * deleted. Size limits count value bytes only, as with files.
      */
 
     private final File directory;
     private final File journalFile;
     private final File journalFileTmp;
+    private final File indexFile;
+    private final File indexFileTmp;
     private final int appVersion;
     private final long maxSize;
     private final int valueCount;
+    private final int durability;
+    private final int packThreshold;
     private long size = 0;
-    private Writer journalWriter;
-    private final LinkedHashMap<String, Entry> lruEntries
-            = new LinkedHashMap<String, Entry>(0, 0.75f, true);
-    private int redundantOpCount;
+    private volatile Writer journalWriter;
+    private final ConcurrentHashMap<String, Entry> lruEntries
+            = new ConcurrentHashMap<String, Entry>();
+    private final AtomicInteger redundantOpCount = new AtomicInteger();
+    /** Source of access stamps; a larger stamp means more recently used. */
+    private final AtomicLong accessClock = new AtomicLong();
+    /** Journal offset covered by the last checkpoint. */
+    private volatile long checkpointOffset;
+    private final ConcurrentHashMap<Integer, Segment> segments
+            = new ConcurrentHashMap<Integer, Segment>();
+    /** The segment new packed entries are appended to, or null before the first one. */
+    private Segment activeSegment;
+    private OutputStream activeSegmentOut;
+    /** The segment compactSegments() is moving entries out of; it deletes it itself. */
+    private Segment compactingSegment;
 
     /**
      * To differentiate between old and current snapshots, each entry is given
@@ -276,22 +387,36 @@ public final class DiskLruCache implements Closeable {
                     return null; // closed
                 }
                 trimToSize();
+                compactSegments();
                 if (journalRebuildRequired()) {
                     rebuildJournal();
-                    redundantOpCount = 0;
+                    redundantOpCount.set(0);
+                } else if (checkpointRequired()) {
+                    writeCheckpoint();
                 }
             }
             return null;
         }
     };
+    private final Callable<Void> orphanSweepCallable = new Callable<Void>() {
+        @Override public Void call() throws Exception {
+            deleteOrphanFiles();
+            return null;
+        }
+    };
 
-    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+            int durability, int packThreshold) {
         this.directory = directory;
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+        this.indexFile = new File(directory, JOURNAL_INDEX);
+        this.indexFileTmp = new File(directory, JOURNAL_INDEX_TMP);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        this.durability = durability;
+        this.packThreshold = packThreshold;
     }
 
     /**
@@ -306,6 +431,32 @@ public final class DiskLruCache implements Closeable {
      */
     public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
             throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, DURABILITY_GROUP_COMMIT);
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there.
+     *
+     * @param durability {@link #DURABILITY_SYNC} or {@link #DURABILITY_GROUP_COMMIT}
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            int durability) throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, durability, 0);
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there.
+     *
+     * @param durability {@link #DURABILITY_SYNC} or {@link #DURABILITY_GROUP_COMMIT}
+     * @param packThreshold entries whose values total at most this many bytes
+     *     are packed into segment files; 0 stores every value in its own file.
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            int durability, int packThreshold) throws IOException {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
@@ -314,13 +465,22 @@ public final class DiskLruCache implements Closeable {
         }
 
         // prefer to pick up where we left off
-        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize,
+                durability, packThreshold);
         if (cache.journalFile.exists()) {
             try {
-                cache.readJournal();
+                long offset = cache.readIndex();
+                if (offset > 0) {
+                    cache.readJournalTail(offset);
+                    // the index already covers the journal up to offset
+                    cache.checkpointOffset = offset;
+                } else {
+                    cache.readJournal();
+                }
                 cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
-                        IO_BUFFER_SIZE);
+                cache.loadSegments();
+                cache.journalWriter = cache.newJournalWriter();
+                cache.executorService.submit(cache.orphanSweepCallable);
                 return cache;
             } catch (IOException journalIsCorrupt) {
 //                System.logW("DiskLruCache " + directory + " is corrupt: "
@@ -331,7 +491,8 @@ public final class DiskLruCache implements Closeable {
 
         // create a new empty cache
         directory.mkdirs();
-        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, durability,
+                packThreshold);
         cache.rebuildJournal();
         return cache;
     }
@@ -352,19 +513,181 @@ public final class DiskLruCache implements Closeable {
                 throw new IOException("unexpected journal header: ["
                         + magic + ", " + version + ", " + valueCountString + ", " + blank + "]");
             }
+            readJournalLines(in);
+        } finally {
+            closeQuietly(in);
+        }
+    }
 
-            while (true) {
-                try {
-                    readJournalLine(readAsciiLine(in));
-                } catch (EOFException endOfJournal) {
-                    break;
+    /**
+     * Replays the journal records after {@code offset}, which must be the end
+     * of a record.
+     */
+    private void readJournalTail(long offset) throws IOException {
+        FileInputStream file = new FileInputStream(journalFile);
+        InputStream in = new BufferedInputStream(file, IO_BUFFER_SIZE);
+        try {
+            file.getChannel().position(offset);
+            readJournalLines(in);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void readJournalLines(InputStream in) throws IOException {
+        while (true) {
+            try {
+                readJournalLine(readAsciiLine(in));
+            } catch (EOFException endOfJournal) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Loads the entries of the last checkpoint.
+     *
+     * @return the journal offset the checkpoint covers, or -1 if there is no
+     *     usable checkpoint, in which case no entries were loaded.
+     */
+    private long readIndex() {
+        if (!indexFile.exists()) {
+            return -1;
+        }
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(indexFile, "r");
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < 4 || crc(buffer, 0, buffer.limit() - 4) != buffer.getInt(buffer.limit() - 4)) {
+                return -1;
+            }
+            if (buffer.getInt() != INDEX_MAGIC
+                    || buffer.getInt() != appVersion
+                    || buffer.getInt() != valueCount) {
+                return -1;
+            }
+            long offset = buffer.getLong();
+            int journalCrc = buffer.getInt();
+            if (offset <= 0 || offset > journalFile.length() || journalCrc(offset) != journalCrc) {
+                return -1; // the journal was rebuilt or truncated after the checkpoint
+            }
+            int entryCount = buffer.getInt();
+            byte[] keyBytes = new byte[64];
+            for (int n = 0; n < entryCount; n++) {
+                int keyLength = buffer.getShort();
+                if (keyBytes.length < keyLength) {
+                    keyBytes = new byte[keyLength];
+                }
+                buffer.get(keyBytes, 0, keyLength);
+                Entry entry = new Entry(new String(keyBytes, 0, keyLength, UTF_8));
+                for (int t = 0; t < valueCount; t++) {
+                    entry.lengths[t] = buffer.getLong();
                 }
+                entry.segment = buffer.getInt();
+                entry.segmentOffset = buffer.getLong();
+                entry.readable = true;
+                entry.lastAccess = accessClock.incrementAndGet();
+                lruEntries.put(entry.key, entry);
             }
+            return offset;
+        } catch (IOException e) {
+            lruEntries.clear();
+            return -1;
+        } catch (BufferUnderflowException e) {
+            lruEntries.clear();
+            return -1;
         } finally {
-            closeQuietly(in);
+            closeQuietly(file);
         }
     }
 
+    /**
+     * Writes the current entries to the index. The journal is flushed first so
+     * that the offset recorded in the index is on disk.
+     */
+    private void writeCheckpoint() throws IOException {
+        long offset = ((JournalWriter) journalWriter).commit();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(indexFileTmp), IO_BUFFER_SIZE));
+        CRC32 crc = new CRC32();
+        try {
+            List<Entry> entries = new ArrayList<Entry>();
+            for (Entry entry : entriesByAccess()) {
+                if (entry.readable) {
+                    entries.add(entry);
+                }
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(IO_BUFFER_SIZE);
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeInt(INDEX_MAGIC);
+            data.writeInt(appVersion);
+            data.writeInt(valueCount);
+            data.writeLong(offset);
+            data.writeInt(journalCrc(offset));
+            data.writeInt(entries.size());
+            for (Entry entry : entries) {
+                byte[] key = entry.key.getBytes(UTF_8);
+                data.writeShort(key.length);
+                data.write(key);
+                for (int t = 0; t < valueCount; t++) {
+                    data.writeLong(entry.lengths[t]);
+                }
+                data.writeInt(entry.segment);
+                data.writeLong(entry.segmentOffset);
+                if (bytes.size() >= IO_BUFFER_SIZE) {
+                    crc.update(bytes.toByteArray());
+                    bytes.writeTo(out);
+                    bytes.reset();
+                }
+            }
+            crc.update(bytes.toByteArray());
+            bytes.writeTo(out);
+            out.writeInt((int) crc.getValue());
+        } finally {
+            out.close();
+        }
+        if (!indexFileTmp.renameTo(indexFile)) {
+            throw new IOException("failed to rename " + indexFileTmp);
+        }
+        checkpointOffset = offset;
+    }
+
+    /** Returns the CRC of the journal bytes just before {@code offset}. */
+    private int journalCrc(long offset) throws IOException {
+        int count = (int) Math.min(offset, INDEX_JOURNAL_CRC_BYTES);
+        byte[] tail = new byte[count];
+        RandomAccessFile file = new RandomAccessFile(journalFile, "r");
+        try {
+            file.seek(offset - count);
+            file.readFully(tail);
+        } finally {
+            closeQuietly(file);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(tail);
+        return (int) crc.getValue();
+    }
+
+    private static int crc(ByteBuffer buffer, int start, int end) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[IO_BUFFER_SIZE];
+        ByteBuffer view = buffer.duplicate();
+        view.position(start);
+        while (start < end) {
+            int count = Math.min(chunk.length, end - start);
+            view.get(chunk, 0, count);
+            crc.update(chunk, 0, count);
+            start += count;
+        }
+        return (int) crc.getValue();
+    }
+
+    boolean checkpointRequired() {
+        JournalWriter writer = (JournalWriter) journalWriter;
+        return writer != null && writer.length() - checkpointOffset >= CHECKPOINT_INTERVAL;
+    }
+
     private void readJournalLine(String line) throws IOException {
         String[] parts = line.split(" ");
         if (parts.length < 2) {
@@ -376,21 +699,31 @@ public final class DiskLruCache implements Closeable {
             lruEntries.remove(key);
             return;
         }
+        if (parts[0].equals(READ) && !lruEntries.containsKey(key)) {
+            return; // a lock-free READ that raced with a REMOVE
+        }
 
         Entry entry = lruEntries.get(key);
         if (entry == null) {
             entry = new Entry(key);
             lruEntries.put(key, entry);
         }
+        entry.lastAccess = accessClock.incrementAndGet();
 
         if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
             entry.readable = true;
             entry.currentEditor = null;
             entry.setLengths(copyOfRange(parts, 2, parts.length));
+            entry.segment = -1;
+        } else if (parts[0].equals(CLEAN) && parts.length == 3 + valueCount) {
+            entry.readable = true;
+            entry.currentEditor = null;
+            entry.setLengths(copyOfRange(parts, 2, parts.length - 1));
+            entry.setLocation(parts[parts.length - 1]);
         } else if (parts[0].equals(DIRTY) && parts.length == 2) {
             entry.currentEditor = new Editor(entry);
         } else if (parts[0].equals(READ) && parts.length == 2) {
-            // this work was already done by calling lruEntries.get()
+            // this work was already done by stamping the entry above
         } else {
             throw new IOException("unexpected journal line: " + line);
         }
@@ -419,6 +752,212 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    /**
+     * Opens the segment files referenced by packed entries. Entries whose
+     * values lie beyond the end of their segment are dropped, as are segments
+     * without live entries.
+     */
+    private void loadSegments() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX)) {
+                try {
+                    int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length()));
+                    segments.put(id, new Segment(id, file));
+                } catch (NumberFormatException e) {
+                    deleteIfExists(file);
+                }
+            }
+        }
+        for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
+            Entry entry = i.next();
+            if (entry.segment < 0) {
+                continue;
+            }
+            Segment segment = segments.get(entry.segment);
+            long length = entry.totalLength();
+            if (segment == null || entry.segmentOffset + length > segment.size) {
+                size -= length;
+                i.remove();
+            } else {
+                segment.liveBytes += length;
+            }
+        }
+        for (Segment segment : new ArrayList<Segment>(segments.values())) {
+            if (segment.liveBytes == 0) {
+                deleteSegment(segment);
+            }
+        }
+    }
+
+    /** Returns the segment to append {@code length} bytes to. */
+    private Segment segmentForAppend(long length) throws IOException {
+        if (activeSegment != null && activeSegment.size > 0
+                && activeSegment.size + length > SEGMENT_SIZE) {
+            closeQuietly(activeSegmentOut);
+            activeSegmentOut = null;
+            activeSegment = null;
+        }
+        if (activeSegment == null) {
+            int id = 0;
+            for (Integer existing : segments.keySet()) {
+                id = Math.max(id, existing + 1);
+            }
+            activeSegment = new Segment(id, new File(directory, SEGMENT_PREFIX + id));
+            segments.put(id, activeSegment);
+        }
+        if (activeSegmentOut == null) {
+            activeSegmentOut = new FileOutputStream(activeSegment.file, true);
+        }
+        return activeSegment;
+    }
+
+    /**
+     * Appends {@code record} to the active segment and points {@code entry}
+     * at it. The entry's previous location is released.
+     */
+    private void appendToSegment(Entry entry, byte[] record) throws IOException {
+        Segment segment = segmentForAppend(record.length);
+        long offset = segment.size;
+        activeSegmentOut.write(record);
+        segment.size += record.length;
+        segment.liveBytes += record.length;
+        releaseSegment(entry);
+        entry.segment = segment.id;
+        entry.segmentOffset = offset;
+    }
+
+    /** Marks the bytes of a packed entry as dead. */
+    private void releaseSegment(Entry entry) throws IOException {
+        if (entry.segment < 0) {
+            return;
+        }
+        Segment segment = segments.get(entry.segment);
+        entry.segment = -1;
+        if (segment != null) {
+            segment.liveBytes -= entry.totalLength();
+            if (segment == activeSegment || segment == compactingSegment) {
+                return;
+            }
+            if (segment.liveBytes <= 0) {
+                deleteSegment(segment);
+            } else if (segment.liveBytes * 2 <= segment.size) {
+                executorService.submit(cleanupCallable);
+            }
+        }
+    }
+
+    private void deleteSegment(Segment segment) throws IOException {
+        segments.remove(segment.id);
+        // readers that already mapped the segment keep their mapping
+        deleteIfExists(segment.file);
+    }
+
+    /** Returns a copy of value {@code index} of a packed entry. */
+    private byte[] readPacked(Entry entry, int index) throws IOException {
+        InputStream in = entry.newPackedInputStream(index);
+        byte[] value = new byte[(int) entry.lengths[index]];
+        try {
+            int offset = 0;
+            while (offset < value.length) {
+                int count = in.read(value, offset, value.length - offset);
+                if (count == -1) {
+                    throw new EOFException();
+                }
+                offset += count;
+            }
+        } finally {
+            closeQuietly(in);
+        }
+        return value;
+    }
+
+    /**
+     * Moves the live entries out of full segments that are mostly dead space,
+     * then deletes those segments. A segment is only deleted once the CLEAN
+     * records pointing at the new copies are committed to the journal.
+     */
+    private void compactSegments() throws IOException {
+        for (Segment segment : new ArrayList<Segment>(segments.values())) {
+            if (segment == activeSegment || segment.liveBytes * 2 > segment.size) {
+                continue;
+            }
+            compactingSegment = segment;
+            try {
+                relocateEntries(segment);
+            } finally {
+                compactingSegment = null;
+            }
+            // until the batch is committed the journal still points at the old copies
+            ((JournalWriter) journalWriter).commit();
+            if (segments.containsKey(segment.id)) {
+                deleteSegment(segment);
+            }
+        }
+    }
+
+    private void relocateEntries(Segment segment) throws IOException {
+        for (Entry entry : lruEntries.values()) {
+            if (entry.segment != segment.id || !entry.readable) {
+                continue;
+            }
+            ByteArrayOutputStream record = new ByteArrayOutputStream((int) entry.totalLength());
+            for (int i = 0; i < valueCount; i++) {
+                record.write(readPacked(entry, i));
+            }
+            entry.publishCount++;
+            try {
+                appendToSegment(entry, record.toByteArray());
+            } finally {
+                entry.publishCount++;
+            }
+            redundantOpCount.incrementAndGet();
+            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths()
+                    + entry.getLocation() + '\n');
+        }
+    }
+
+    /**
+     * Deletes files that don't belong to a readable entry: temporary files of
+     * edits that never completed, and values whose records were lost. Runs on
+     * the cleanup thread, so files of edits started since the cache was opened
+     * are left alone.
+     */
+    private void deleteOrphanFiles() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.equals(JOURNAL_FILE) || name.equals(JOURNAL_FILE_TMP)
+                    || name.equals(JOURNAL_INDEX) || name.equals(JOURNAL_INDEX_TMP)
+                    || name.startsWith(SEGMENT_PREFIX) || file.isDirectory()) {
+                continue;
+            }
+            int dot = name.indexOf('.');
+            String key = dot == -1 ? name : name.substring(0, dot);
+            synchronized (this) {
+                if (journalWriter == null) {
+                    return; // closed
+                }
+                Entry entry = lruEntries.get(key);
+                if (entry == null || (name.endsWith(".tmp") && entry.currentEditor == null)) {
+                    deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private Writer newJournalWriter() throws IOException {
+        Writer writer = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
+        return new JournalWriter(writer, durability == DURABILITY_SYNC, journalFile.length());
+    }
+
     /**
      * Creates a new journal that omits redundant information. This replaces the
      * current journal if it exists.
@@ -439,17 +978,19 @@ public final class DiskLruCache implements Closeable {
         writer.write("\n");
         writer.write("\n");
 
-        for (Entry entry : lruEntries.values()) {
+        for (Entry entry : entriesByAccess()) {
             if (entry.currentEditor != null) {
                 writer.write(DIRTY + ' ' + entry.key + '\n');
             } else {
-                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + entry.getLocation()
+                        + '\n');
             }
         }
 
         writer.close();
         journalFileTmp.renameTo(journalFile);
-        journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
+        journalWriter = newJournalWriter();
+        writeCheckpoint();
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -470,40 +1011,70 @@ public final class DiskLruCache implements Closeable {
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
      */
-    public synchronized Snapshot get(String key) throws IOException {
-        checkNotClosed();
+    public Snapshot get(String key) throws IOException {
+        Writer writer = journalWriter;
+        if (writer == null) {
+            throw new IllegalStateException("cache is closed");
+        }
         validateKey(key);
         Entry entry = lruEntries.get(key);
         if (entry == null) {
             return null;
         }
 
-        if (!entry.readable) {
-            return null;
-        }
-
         /*
          * Open all streams eagerly to guarantee that we see a single published
          * snapshot. If we opened streams lazily then the streams could come
-         * from different edits.
+         * from different edits. completeEdit() makes the publish count odd
+         * while it renames files or moves a packed entry, so retry if it was
+         * odd or changed while the streams were being opened.
          */
         InputStream[] ins = new InputStream[valueCount];
-        try {
-            for (int i = 0; i < valueCount; i++) {
-                ins[i] = new FileInputStream(entry.getCleanFile(i));
+        long sequenceNumber;
+        while (true) {
+            int publishCount = entry.publishCount;
+            if (!entry.readable) {
+                return null;
             }
-        } catch (FileNotFoundException e) {
-            // a file must have been deleted manually!
-            return null;
+            sequenceNumber = entry.sequenceNumber;
+            if ((publishCount & 1) == 0) {
+                try {
+                    for (int i = 0; i < valueCount; i++) {
+                        ins[i] = entry.segment >= 0
+                                ? entry.newPackedInputStream(i)
+                                : new FileInputStream(entry.getCleanFile(i));
+                    }
+                } catch (IOException e) {
+                    closeAll(ins);
+                    if (publishCount == entry.publishCount) {
+                        // removed concurrently, or a file was deleted manually!
+                        return null;
+                    }
+                    continue;
+                }
+                if (publishCount == entry.publishCount) {
+                    break;
+                }
+                closeAll(ins);
+            }
+            Thread.yield();
         }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
+        entry.lastAccess = accessClock.incrementAndGet();
+        redundantOpCount.incrementAndGet();
+        writer.append(READ + ' ' + key + '\n');
+        if (journalRebuildRequired() || checkpointRequired()) {
             executorService.submit(cleanupCallable);
         }
 
-        return new Snapshot(key, entry.sequenceNumber, ins);
+        return new Snapshot(key, sequenceNumber, ins);
+    }
+
+    private static void closeAll(InputStream[] ins) {
+        for (int i = 0; i < ins.length; i++) {
+            closeQuietly(ins[i]);
+            ins[i] = null;
+        }
     }
 
     /**
@@ -532,9 +1103,9 @@ public final class DiskLruCache implements Closeable {
         Editor editor = new Editor(entry);
         entry.currentEditor = editor;
 
-        // flush the journal before creating files to prevent file leaks
+        // in DURABILITY_SYNC mode the journal is flushed before creating files to
+        // prevent file leaks; otherwise leaked files are collected by deleteOrphanFiles()
         journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
         return editor;
     }
 
@@ -553,6 +1124,20 @@ public final class DiskLruCache implements Closeable {
         return maxSize;
     }
 
+    /**
+     * Returns the key of the entry that would be evicted next, or null if the
+     * cache has no entry that can be evicted. This scans every entry.
+     */
+    public String peekEldestKey() {
+        Entry eldest = null;
+        for (Entry entry : lruEntries.values()) {
+            if (entry.readable && (eldest == null || entry.lastAccess < eldest.lastAccess)) {
+                eldest = entry;
+            }
+        }
+        return eldest != null ? eldest.key : null;
+    }
+
     /**
      * Returns the number of bytes currently being used to store the values in
      * this cache. This may be greater than the max size if a background
@@ -578,48 +1163,168 @@ public final class DiskLruCache implements Closeable {
             }
         }
 
-        for (int i = 0; i < valueCount; i++) {
-            File dirty = entry.getDirtyFile(i);
-            if (success) {
-                if (dirty.exists()) {
-                    File clean = entry.getCleanFile(i);
-                    dirty.renameTo(clean);
-                    long oldLength = entry.lengths[i];
-                    long newLength = clean.length();
-                    entry.lengths[i] = newLength;
-                    size = size - oldLength + newLength;
+        if (success) {
+            // The DIRTY record must reach the journal before the clean files or the
+            // segment change. Otherwise a crash before the next group commit would
+            // leave the new values under the previous CLEAN record; with DIRTY as
+            // the key's last record the entry is dropped when the cache is opened.
+            ((JournalWriter) journalWriter).commit();
+            entry.publishCount++; // odd: readers retry while the clean files change
+            boolean published = false;
+            try {
+                if (!packEdit(entry)) {
+                    publishFiles(entry);
                 }
-            } else {
-                deleteIfExists(dirty);
+                entry.readable = true;
+                entry.sequenceNumber = nextSequenceNumber++;
+                entry.lastAccess = accessClock.incrementAndGet();
+                published = true;
+            } finally {
+                try {
+                    if (!published) {
+                        discardFailedEdit(entry);
+                    }
+                } finally {
+                    entry.publishCount++;
+                }
+            }
+        } else {
+            for (int i = 0; i < valueCount; i++) {
+                deleteIfExists(entry.getDirtyFile(i));
             }
         }
 
-        redundantOpCount++;
+        redundantOpCount.incrementAndGet();
         entry.currentEditor = null;
-        if (entry.readable | success) {
-            entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
-            if (success) {
-                entry.sequenceNumber = nextSequenceNumber++;
-            }
+        if (entry.readable) {
+            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + entry.getLocation()
+                    + '\n');
         } else {
             lruEntries.remove(entry.key);
             journalWriter.write(REMOVE + ' ' + entry.key + '\n');
         }
 
-        if (size > maxSize || journalRebuildRequired()) {
+        if (size > maxSize || journalRebuildRequired() || checkpointRequired()) {
             executorService.submit(cleanupCallable);
         }
     }
 
+    /**
+     * Drops an entry whose edit couldn't be published. Its previous values
+     * may already be partly overwritten, so none of them are kept.
+     */
+    private void discardFailedEdit(Entry entry) throws IOException {
+        entry.readable = false;
+        entry.currentEditor = null;
+        lruEntries.remove(entry.key);
+        redundantOpCount.incrementAndGet();
+        journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+        for (int i = 0; i < valueCount; i++) {
+            size -= entry.lengths[i];
+            entry.lengths[i] = 0;
+        }
+        releaseSegment(entry);
+        for (int i = 0; i < valueCount; i++) {
+            deleteIfExists(entry.getDirtyFile(i));
+            deleteIfExists(entry.getCleanFile(i));
+        }
+    }
+
+    /**
+     * Appends the values of a successful edit to a segment if they total at
+     * most {@link #packThreshold} bytes. Values the edit didn't change are
+     * copied from the previous version.
+     *
+     * @return false if the values should be stored as files instead.
+     */
+    private boolean packEdit(Entry entry) throws IOException {
+        if (packThreshold <= 0) {
+            return false;
+        }
+        long total = 0;
+        for (int i = 0; i < valueCount; i++) {
+            File dirty = entry.getDirtyFile(i);
+            total += dirty.exists() ? dirty.length() : entry.lengths[i];
+        }
+        if (total > packThreshold) {
+            return false;
+        }
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream((int) total);
+        long[] newLengths = new long[valueCount];
+        for (int i = 0; i < valueCount; i++) {
+            int start = record.size();
+            File dirty = entry.getDirtyFile(i);
+            if (dirty.exists()) {
+                copyFile(dirty, record);
+            } else if (entry.segment >= 0) {
+                record.write(readPacked(entry, i));
+            } else {
+                copyFile(entry.getCleanFile(i), record);
+            }
+            newLengths[i] = record.size() - start;
+        }
+        long oldTotal = entry.totalLength();
+        appendToSegment(entry, record.toByteArray());
+        // the lengths describe the new record before any file is deleted, so
+        // a failed delete leaves them consistent with the segment and size
+        System.arraycopy(newLengths, 0, entry.lengths, 0, valueCount);
+        size = size - oldTotal + record.size();
+        for (int i = 0; i < valueCount; i++) {
+            deleteIfExists(entry.getDirtyFile(i));
+            deleteIfExists(entry.getCleanFile(i));
+        }
+        return true;
+    }
+
+    /**
+     * Publishes the values of a successful edit as files. Values of a packed
+     * entry that the edit didn't change are copied out of its segment.
+     */
+    private void publishFiles(Entry entry) throws IOException {
+        for (int i = 0; i < valueCount; i++) {
+            File dirty = entry.getDirtyFile(i);
+            File clean = entry.getCleanFile(i);
+            if (dirty.exists()) {
+                dirty.renameTo(clean);
+                long oldLength = entry.lengths[i];
+                long newLength = clean.length();
+                entry.lengths[i] = newLength;
+                size = size - oldLength + newLength;
+            } else if (entry.segment >= 0) {
+                OutputStream out = new FileOutputStream(clean);
+                try {
+                    out.write(readPacked(entry, i));
+                } finally {
+                    out.close();
+                }
+            }
+        }
+        releaseSegment(entry);
+    }
+
+    private static void copyFile(File file, OutputStream out) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[IO_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
     /**
      * We only rebuild the journal when it will halve the size of the journal
      * and eliminate at least 2000 ops.
      */
     private boolean journalRebuildRequired() {
         final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
-        return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
-                && redundantOpCount >= lruEntries.size();
+        int count = redundantOpCount.get();
+        return count >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && count >= lruEntries.size();
     }
 
     /**
@@ -636,16 +1341,28 @@ public final class DiskLruCache implements Closeable {
             return false;
         }
 
-        for (int i = 0; i < valueCount; i++) {
-            File file = entry.getCleanFile(i);
-            if (!file.delete()) {
-                throw new IOException("failed to delete " + file);
+        entry.publishCount++; // odd: readers retry while the entry is torn down
+        try {
+            entry.readable = false;
+            if (entry.segment >= 0) {
+                releaseSegment(entry);
+            } else {
+                for (int i = 0; i < valueCount; i++) {
+                    File file = entry.getCleanFile(i);
+                    if (!file.delete()) {
+                        throw new IOException("failed to delete " + file);
+                    }
+                }
             }
-            size -= entry.lengths[i];
-            entry.lengths[i] = 0;
+            for (int i = 0; i < valueCount; i++) {
+                size -= entry.lengths[i];
+                entry.lengths[i] = 0;
+            }
+        } finally {
+            entry.publishCount++;
         }
 
-        redundantOpCount++;
+        redundantOpCount.incrementAndGet();
         journalWriter.append(REMOVE + ' ' + key + '\n');
         lruEntries.remove(key);
 
@@ -675,6 +1392,7 @@ public final class DiskLruCache implements Closeable {
     public synchronized void flush() throws IOException {
         checkNotClosed();
         trimToSize();
+        compactSegments();
         journalWriter.flush();
     }
 
@@ -691,16 +1409,37 @@ public final class DiskLruCache implements Closeable {
             }
         }
         trimToSize();
+        writeCheckpoint();
         journalWriter.close();
         journalWriter = null;
+        closeQuietly(activeSegmentOut);
+        activeSegmentOut = null;
     }
 
     private void trimToSize() throws IOException {
-        while (size > maxSize) {
-//            Map.Entry<String, Entry> toEvict = lruEntries.eldest();
-            final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+        if (size <= maxSize) {
+            return;
         }
+        // entries being edited can't be removed; skip them rather than spin
+        for (Entry toEvict : entriesByAccess()) {
+            if (size <= maxSize) {
+                break;
+            }
+            remove(toEvict.key);
+        }
+    }
+
+    /** Returns the entries from least to most recently used. */
+    private List<Entry> entriesByAccess() {
+        List<Entry> entries = new ArrayList<Entry>(lruEntries.values());
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override public int compare(Entry a, Entry b) {
+                long x = a.lastAccess;
+                long y = b.lastAccess;
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        return entries;
     }
 
     /**
@@ -791,6 +1530,9 @@ public final class DiskLruCache implements Closeable {
                 if (!entry.readable) {
                     return null;
                 }
+                if (entry.segment >= 0) {
+                    return entry.newPackedInputStream(index);
+                }
                 return new FileInputStream(entry.getCleanFile(index));
             }
         }
@@ -893,6 +1635,199 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    /**
+     * Writes journal records to {@code out}. Each {@code write} or
+     * {@code append} call is one record. In sync mode every record is flushed
+     * immediately; otherwise records are collected and flushed together by
+     * {@link #journalCommitExecutor}, outside of the cache's lock.
+     */
+    private static final class JournalWriter extends Writer {
+        private final Writer out;
+        private final boolean sync;
+        private boolean closed;
+        /** Length of the journal file including pending records. */
+        private long length;
+        /** Guards the order in which batches reach {@code out}. */
+        private final Object ioLock = new Object();
+        private StringBuilder pending = new StringBuilder();
+        private boolean commitScheduled;
+        private IOException commitError;
+        private final Runnable commitRunnable = new Runnable() {
+            @Override public void run() {
+                try {
+                    commit();
+                } catch (IOException e) {
+                    synchronized (JournalWriter.this) {
+                        commitError = e;
+                    }
+                }
+            }
+        };
+
+        private JournalWriter(Writer out, boolean sync, long length) {
+            this.out = out;
+            this.sync = sync;
+            this.length = length;
+        }
+
+        @Override public void write(char[] buffer, int offset, int count) throws IOException {
+            boolean commitNow;
+            synchronized (this) {
+                if (commitError != null) {
+                    IOException e = commitError;
+                    commitError = null;
+                    throw e;
+                }
+                if (closed) {
+                    return; // a READ record racing with rebuildJournal()
+                }
+                pending.append(buffer, offset, count);
+                length += count; // records are ASCII
+                commitNow = sync;
+                if (!sync && !commitScheduled) {
+                    commitScheduled = true;
+                    long delay = pending.length() >= GROUP_COMMIT_SIZE ? 0 : GROUP_COMMIT_DELAY_MILLIS;
+                    journalCommitExecutor.schedule(commitRunnable, delay, TimeUnit.MILLISECONDS);
+                } else if (!sync && pending.length() >= GROUP_COMMIT_SIZE) {
+                    journalCommitExecutor.execute(commitRunnable);
+                }
+            }
+            if (commitNow) {
+                commit();
+            }
+        }
+
+        /**
+         * Writes and flushes every pending record.
+         *
+         * @return the length of the journal file once the batch is flushed
+         */
+        private long commit() throws IOException {
+            synchronized (ioLock) {
+                StringBuilder batch;
+                long committed;
+                synchronized (this) {
+                    batch = pending;
+                    pending = new StringBuilder();
+                    commitScheduled = false;
+                    committed = length;
+                }
+                if (batch.length() > 0) {
+                    out.write(batch.toString());
+                    out.flush();
+                }
+                return committed;
+            }
+        }
+
+        private synchronized long length() {
+            return length;
+        }
+
+        @Override public void flush() throws IOException {
+            commit();
+        }
+
+        @Override public void close() throws IOException {
+            synchronized (this) {
+                closed = true;
+            }
+            commit();
+            synchronized (ioLock) {
+                out.close();
+            }
+        }
+    }
+
+    /** A file that packed entries are appended to. */
+    private static final class Segment {
+        private final int id;
+        private final File file;
+        /** Bytes appended so far; guarded by the cache. */
+        private long size;
+        /** Bytes that belong to readable entries; guarded by the cache. */
+        private long liveBytes;
+        private MappedByteBuffer mapped;
+
+        private Segment(int id, File file) {
+            this.id = id;
+            this.file = file;
+            this.size = file.length();
+        }
+
+        /**
+         * Returns a read-only mapping of this segment that covers at least
+         * {@code end} bytes. The active segment is remapped as it grows.
+         */
+        private synchronized ByteBuffer map(long end) throws IOException {
+            if (mapped == null || mapped.capacity() < end) {
+                RandomAccessFile in = new RandomAccessFile(file, "r");
+                try {
+                    FileChannel channel = in.getChannel();
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                } finally {
+                    closeQuietly(in);
+                }
+                if (mapped.capacity() < end) {
+                    throw new EOFException("segment " + id + " is shorter than " + end);
+                }
+            }
+            return mapped;
+        }
+    }
+
+    /**
+     * Reads a mapped value. Mark and reset only move the buffer position, so
+     * the whole value stays re-readable regardless of the read limit.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+        private int markPosition;
+
+        private ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.markPosition = buffer.position();
+        }
+
+        @Override public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override public int read(byte[] bytes, int offset, int count) {
+            if (count == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            count = Math.min(count, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override public long skip(long count) {
+            int skipped = (int) Math.min(Math.max(count, 0), buffer.remaining());
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override public int available() {
+            return buffer.remaining();
+        }
+
+        @Override public boolean markSupported() {
+            return true;
+        }
+
+        @Override public synchronized void mark(int readLimit) {
+            markPosition = buffer.position();
+        }
+
+        @Override public synchronized void reset() {
+            buffer.position(markPosition);
+        }
+    }
+
     private final class Entry {
         private final String key;
 
@@ -900,13 +1835,25 @@ public final class DiskLruCache implements Closeable {
         private final long[] lengths;
 
         /** True if this entry has ever been published */
-        private boolean readable;
+        private volatile boolean readable;
 
         /** The ongoing edit or null if this entry is not being edited. */
         private Editor currentEditor;
 
         /** The sequence number of the most recently committed edit to this entry. */
-        private long sequenceNumber;
+        private volatile long sequenceNumber;
+
+        /** Incremented before and after the entry's files change; odd while they do. */
+        private volatile int publishCount;
+
+        /** Access stamp from {@link #accessClock}, used for LRU order. */
+        private volatile long lastAccess;
+
+        /** The segment holding this entry's values, or -1 if they are files. */
+        private volatile int segment = -1;
+
+        /** Position of the first value in {@link #segment}; the others follow it. */
+        private volatile long segmentOffset;
 
         private Entry(String key) {
             this.key = key;
@@ -942,6 +1889,52 @@ public final class DiskLruCache implements Closeable {
             throw new IOException("unexpected journal line: " + Arrays.toString(strings));
         }
 
+        private long totalLength() {
+            long total = 0;
+            for (long length : lengths) {
+                total += length;
+            }
+            return total;
+        }
+
+        /** Returns the location token of a CLEAN record, or "" for file entries. */
+        private String getLocation() {
+            return segment >= 0 ? " @" + segment + ":" + segmentOffset : "";
+        }
+
+        /**
+         * Set the location from a token like "@3:65536".
+         */
+        private void setLocation(String token) throws IOException {
+            int colon = token.indexOf(':');
+            if (!token.startsWith("@") || colon == -1) {
+                throw new IOException("unexpected journal location: " + token);
+            }
+            try {
+                segment = Integer.parseInt(token.substring(1, colon));
+                segmentOffset = Long.parseLong(token.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new IOException("unexpected journal location: " + token);
+            }
+        }
+
+        /** Returns a stream over value {@code index} of this packed entry. */
+        private InputStream newPackedInputStream(int index) throws IOException {
+            Segment segment = segments.get(this.segment);
+            if (segment == null) {
+                throw new FileNotFoundException("segment " + this.segment);
+            }
+            long start = segmentOffset;
+            for (int i = 0; i < index; i++) {
+                start += lengths[i];
+            }
+            long end = start + lengths[index];
+            ByteBuffer value = segment.map(end).duplicate();
+            value.limit((int) end);
+            value.position((int) start);
+            return new ByteBufferInputStream(value.slice());
+        }
+
         public File getCleanFile(int i) {
             return new File(directory, key + "." + i);
         }
@@ -0,0 +1,99 @@
+package com.ailsa.imageloader.imageloader;
+
+/**
+ * TinyLFU使用的Count-Min Sketch，以很小的内存估计key最近被访问的次数。
+ * 每个计数器占4位，最大为15；累计记录的次数达到容量的10倍时所有计数减半，
+ * 使很久以前的热门图片逐渐冷却。
+ */
+
+public class FrequencySketch {
+
+    private static final long[] SEED = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    //每个long保存16个4位的计数器
+    private final long[] mTable;
+    private final int mTableMask;
+    private final int mSampleSize;
+    private int mSize;
+
+    /**
+     * @param maximumSize 需要区分频率的key的大致数量，通常为缓存能容纳的条目数
+     */
+    public FrequencySketch(int maximumSize){
+        int size = 1;
+        while(size < Math.max(maximumSize, 1)){
+            size <<= 1;
+        }
+        mTable = new long[size];
+        mTableMask = size - 1;
+        mSampleSize = 10 * Math.max(maximumSize, 1);
+    }
+
+    /**
+     * 返回key的估计访问次数，最大为15
+     */
+    public synchronized int frequency(Object key){
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for(int i = 0; i < 4; i++){
+            int index = indexOf(hash, i);
+            int count = (int) ((mTable[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * 记录一次访问
+     */
+    public synchronized void increment(Object key){
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for(int i = 0; i < 4; i++){
+            int index = indexOf(hash, i);
+            added |= incrementAt(index, start + i);
+        }
+        if(added && ++mSize == mSampleSize){
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter){
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        if((mTable[index] & mask) != mask){
+            mTable[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 所有计数减半，奇数计数被截断的部分从mSize中扣除
+     */
+    private void reset(){
+        int count = 0;
+        for(int i = 0; i < mTable.length; i++){
+            count += Long.bitCount(mTable[i] & ONE_MASK);
+            mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+        }
+        mSize = (mSize >>> 1) - (count >>> 2);
+    }
+
+    private int indexOf(int item, int i){
+        long hash = (item + SEED[i]) * SEED[i];
+        hash += hash >>> 32;
+        return ((int) hash) & mTableMask;
+    }
+
+    private static int spread(int x){
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,129 @@
+package com.ailsa.imageloader.imageloader;
+
+import java.net.HttpURLConnection;
+
+/**
+ * 图片的HTTP缓存信息：ETag、Last-Modified和过期时间，与图片一起存入磁盘缓存。
+ * 过期后带上ETag和Last-Modified重新请求，服务器返回304时只需更新过期时间，不必重新下载
+ */
+
+public class HttpCacheInfo {
+
+    //服务器没有指定有效期时使用的默认值
+    static final long DEFAULT_MAX_AGE = 24 * 60 * 60 * 1000L;
+
+    /** 没有时为null */
+    public final String etag;
+    /** 服务器返回的原始值，原样用于If-Modified-Since，没有时为null */
+    public final String lastModified;
+    /** 过期的时间，毫秒 */
+    public final long expires;
+
+    public HttpCacheInfo(String etag, String lastModified, long expires){
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.expires = expires;
+    }
+
+    /**
+     * 根据响应头计算缓存信息，优先使用Cache-Control，其次是Expires
+     *
+     * @param now 收到响应的时间，毫秒
+     */
+    public static HttpCacheInfo fromConnection(HttpURLConnection connection, long now){
+        long expires = now + DEFAULT_MAX_AGE;
+        String cacheControl = connection.getHeaderField("Cache-Control");
+        long maxAge = parseMaxAge(cacheControl);
+        if(maxAge >= 0){
+            expires = now + maxAge * 1000;
+        } else if(connection.getExpiration() > 0){
+            //按服务器时间计算剩余的有效期，避免本地时钟不准
+            long date = connection.getDate() > 0 ? connection.getDate() : now;
+            expires = now + Math.max(0, connection.getExpiration() - date);
+        }
+        return new HttpCacheInfo(emptyToNull(connection.getHeaderField("ETag")),
+                emptyToNull(connection.getHeaderField("Last-Modified")), expires);
+    }
+
+    /**
+     * 从Cache-Control中取出max-age，单位秒，no-cache时为0，没有时返回-1
+     */
+    static long parseMaxAge(String cacheControl){
+        if(cacheControl == null){
+            return -1;
+        }
+        for(String directive : cacheControl.split(",")){
+            directive = directive.trim();
+            if(directive.equalsIgnoreCase("no-cache")){
+                return 0;
+            }
+            if(directive.regionMatches(true, 0, "max-age=", 0, 8)){
+                try {
+                    return Math.max(0, Long.parseLong(directive.substring(8).trim()));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    public boolean isStale(long now){
+        return now >= expires;
+    }
+
+    /**
+     * 能否发送条件请求
+     */
+    public boolean hasValidators(){
+        return etag != null || lastModified != null;
+    }
+
+    /**
+     * 图片内容的版本，304只刷新过期时间，版本不变。没有ETag和Last-Modified时每次都会重新下载，以过期时间区分
+     */
+    public String version(){
+        if(hasValidators()){
+            return (etag != null ? etag : "") + "\n" + (lastModified != null ? lastModified : "");
+        }
+        return String.valueOf(expires);
+    }
+
+    /**
+     * 合并304响应的缓存信息，响应中没有的ETag和Last-Modified沿用原来的值
+     */
+    public HttpCacheInfo refresh(HttpCacheInfo response){
+        return new HttpCacheInfo(response.etag != null ? response.etag : etag,
+                response.lastModified != null ? response.lastModified : lastModified, response.expires);
+    }
+
+    /**
+     * 解析{@link #toString()}的结果，格式不正确时返回null
+     */
+    public static HttpCacheInfo parse(String value){
+        if(value == null){
+            return null;
+        }
+        String[] parts = value.split("\n", -1);
+        if(parts.length < 3){
+            return null;
+        }
+        try {
+            return new HttpCacheInfo(emptyToNull(parts[1]), emptyToNull(parts[2]), Long.parseLong(parts[0]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String emptyToNull(String value){
+        return value == null || value.length() == 0 ? null : value;
+    }
+
+    /**
+     * 每项一行，依次为过期时间、ETag和Last-Modified，Last-Modified中含有空格
+     */
+    @Override
+    public String toString() {
+        return expires + "\n" + (etag != null ? etag : "") + "\n" + (lastModified != null ? lastModified : "");
+    }
+}
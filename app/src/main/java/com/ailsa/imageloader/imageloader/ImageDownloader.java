@@ -0,0 +1,165 @@
+package com.ailsa.imageloader.imageloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * 负责从网络下载图片，用缓存池中的缓冲区批量读写，并可回调下载进度。
+ * 成功读完响应后不断开连接，使HttpURLConnection能复用keep-alive连接
+ */
+
+public class ImageDownloader {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int BUFFER_POOL_SIZE = BUFFER_SIZE * 8;
+
+    /** 下载失败或被中断 */
+    public static final int RESULT_FAILED = 0;
+    public static final int RESULT_OK = 1;
+    /** 服务器返回304，缓存的图片仍然有效，没有写入outputStream */
+    public static final int RESULT_NOT_MODIFIED = 2;
+
+    /**
+     * 下载进度回调，在下载线程中调用
+     */
+    public interface ProgressListener {
+        /**
+         * @param total 图片总字节数，服务器未返回长度时为-1
+         */
+        void onProgress(String url, long downloaded, long total);
+    }
+
+    /**
+     * 在下载的同时读取图片内容，如边下载边解码
+     */
+    public interface StreamReader {
+        void read(InputStream is) throws IOException;
+    }
+
+    private final ByteArrayPool mBufferPool;
+    private volatile ProgressListener mProgressListener;
+
+    public ImageDownloader(){
+        this(new ByteArrayPool(BUFFER_POOL_SIZE));
+    }
+
+    public ImageDownloader(ByteArrayPool bufferPool){
+        mBufferPool = bufferPool;
+    }
+
+    public void setProgressListener(ProgressListener listener){
+        mProgressListener = listener;
+    }
+
+    /**
+     * 将urlString的内容写入outputStream，完成后关闭outputStream。
+     * 线程被中断时放弃下载并返回false
+     */
+    public boolean downloadUrlToStream(String urlString, OutputStream outputStream){
+        return downloadUrlToStream(urlString, outputStream, null);
+    }
+
+    /**
+     * 下载的内容先交给reader读取，读到的部分同时写入outputStream；
+     * reader返回后再把剩余的内容写入outputStream，完成后关闭outputStream
+     */
+    public boolean downloadUrlToStream(String urlString, OutputStream outputStream, StreamReader reader){
+        return download(urlString, outputStream, reader, null, null) == RESULT_OK;
+    }
+
+    /**
+     * 与{@link #downloadUrlToStream(String, OutputStream, StreamReader)}相同，
+     * cached不为null时带上其中的ETag和Last-Modified发送条件请求
+     *
+     * @param response 不为null时response[0]设为响应的缓存信息，304时已与cached合并
+     * @return {@link #RESULT_OK}、{@link #RESULT_NOT_MODIFIED}或{@link #RESULT_FAILED}
+     */
+    public int download(String urlString, OutputStream outputStream, StreamReader reader,
+                        HttpCacheInfo cached, HttpCacheInfo[] response){
+        HttpURLConnection connection = null;
+        InputStream is = null;
+        //响应读完后连接才能放回连接池，否则需要断开
+        boolean reusable = false;
+        try {
+            URL url = new URL(urlString);
+            connection = (HttpURLConnection) url.openConnection();
+            if(cached != null){
+                if(cached.etag != null){
+                    connection.setRequestProperty("If-None-Match", cached.etag);
+                }
+                if(cached.lastModified != null){
+                    connection.setRequestProperty("If-Modified-Since", cached.lastModified);
+                }
+            }
+            int code = connection.getResponseCode();
+            HttpCacheInfo info = HttpCacheInfo.fromConnection(connection, System.currentTimeMillis());
+            is = connection.getInputStream();
+            if(code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null){
+                reusable = true;
+                if(response != null){
+                    response[0] = cached.refresh(info);
+                }
+                return RESULT_NOT_MODIFIED;
+            }
+            long total = connection.getContentLength();
+            long read = 0;
+            if(reader != null){
+                TeeInputStream tee = new TeeInputStream(is, outputStream);
+                reader.read(tee);
+                read = tee.getCount();
+                if(Thread.currentThread().isInterrupted()){
+                    return RESULT_FAILED;
+                }
+            }
+            if(copy(urlString, is, outputStream, read, total) < 0){
+                return RESULT_FAILED;
+            }
+            reusable = true;
+            if(response != null){
+                response[0] = info;
+            }
+            return RESULT_OK;
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            DiskLruCache.closeQuietly(is);
+            DiskLruCache.closeQuietly(outputStream);
+            if(connection != null && !reusable){
+                connection.disconnect();
+            }
+        }
+        return RESULT_FAILED;
+    }
+
+    /**
+     * 从is批量复制到os，返回包括之前已下载的downloaded在内的总字节数，被中断时返回-1
+     */
+    long copy(String url, InputStream is, OutputStream os, long downloaded, long total) throws IOException {
+        ProgressListener listener = mProgressListener;
+        byte[] buffer = mBufferPool.getBuf(BUFFER_SIZE);
+        try {
+            int count;
+            while((count = is.read(buffer)) != -1){
+                os.write(buffer, 0, count);
+                downloaded += count;
+                if(listener != null){
+                    listener.onProgress(url, downloaded, total);
+                }
+                //请求被取消时放弃下载
+                if(Thread.currentThread().isInterrupted()){
+                    return -1;
+                }
+            }
+            os.flush();
+            return downloaded;
+        } finally {
+            mBufferPool.returnBuf(buffer);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.ailsa.imageloader.imageloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 只读取文件头得到图片的宽高、类型和是否透明，支持JPEG、PNG、GIF和WebP，
+ * 比BitmapFactory的inJustDecodeBounds读取的内容少
+ */
+
+public class ImageHeaderParser {
+
+    public static final String MIME_JPEG = "image/jpeg";
+    public static final String MIME_PNG = "image/png";
+    public static final String MIME_GIF = "image/gif";
+    public static final String MIME_WEBP = "image/webp";
+
+    private static final int PNG_HEADER = 0x89504E47;
+    private static final int RIFF_HEADER = 0x52494646;
+    private static final int WEBP_HEADER = 0x57454250;
+    private static final int VP8_HEADER = 0x56503820;
+    private static final int VP8L_HEADER = 0x5650384C;
+    private static final int VP8X_HEADER = 0x56503858;
+    private static final int PNG_TRNS = 0x74524E53;
+    private static final int PNG_IDAT = 0x49444154;
+    private static final int PNG_IEND = 0x49454E44;
+    //PNG在IDAT之前查找tRNS块的最大范围，超过时视为透明
+    private static final int MAX_PNG_SCAN = 64 * 1024;
+    /** 最多读取的字节数，超过时放弃解析。调用者mark的范围不能小于这个长度 */
+    static final int MAX_HEADER_BYTES = 128 * 1024;
+
+    private final InputStream mStream;
+    private int mPosition;
+
+    private ImageHeaderParser(InputStream is){
+        mStream = is;
+    }
+
+    /**
+     * 读取is开头的文件头，无法识别时返回null。调用者需自行mark/reset，
+     * 最多读取{@link #MAX_HEADER_BYTES}个字节
+     */
+    public static ImageInfo parse(InputStream is){
+        try {
+            return new ImageHeaderParser(is).parse();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private ImageInfo parse() throws IOException {
+        int magic = readUInt16();
+        if(magic == 0xFFD8){
+            return parseJpeg();
+        }
+        magic = magic << 16 | readUInt16();
+        if(magic == PNG_HEADER){
+            return parsePng();
+        }
+        if(magic == 0x47494638){
+            //GIF8
+            return parseGif();
+        }
+        if(magic == RIFF_HEADER){
+            return parseWebp();
+        }
+        return null;
+    }
+
+    private ImageInfo parseJpeg() throws IOException {
+        while(true){
+            int b = readUInt8();
+            if(b != 0xFF){
+                return null;
+            }
+            int marker = readUInt8();
+            //填充字节
+            while(marker == 0xFF){
+                marker = readUInt8();
+            }
+            if(marker == 0xD9 || marker == 0xDA){
+                //EOI、SOS之前还没有SOF
+                return null;
+            }
+            if(marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)){
+                //没有长度的标记
+                continue;
+            }
+            int length = readUInt16();
+            if(length < 2){
+                return null;
+            }
+            if(marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC){
+                //SOF：精度、高、宽
+                readUInt8();
+                int height = readUInt16();
+                int width = readUInt16();
+                return width > 0 && height > 0 ? new ImageInfo(width, height, MIME_JPEG, false) : null;
+            }
+            //APP1等段可能很长，超过MAX_HEADER_BYTES时由skip放弃
+            skip(length - 2);
+        }
+    }
+
+    private ImageInfo parsePng() throws IOException {
+        //签名的后4个字节，IHDR块的长度和类型
+        skip(8);
+        if(readInt() != 0x49484452){
+            return null;
+        }
+        int width = readInt();
+        int height = readInt();
+        if(width <= 0 || height <= 0){
+            return null;
+        }
+        return new ImageInfo(width, height, MIME_PNG, pngHasAlpha());
+    }
+
+    /**
+     * 颜色类型为4、6时带有alpha通道，其他类型在IDAT之前有tRNS块时也是透明的
+     */
+    private boolean pngHasAlpha(){
+        try {
+            //位深度
+            readUInt8();
+            int colorType = readUInt8();
+            if(colorType == 4 || colorType == 6){
+                return true;
+            }
+            //压缩、过滤、隔行扫描方法和IHDR的CRC
+            skip(3 + 4);
+            while(mPosition < MAX_PNG_SCAN){
+                int length = readInt();
+                int type = readInt();
+                if(type == PNG_TRNS){
+                    return true;
+                }
+                if(type == PNG_IDAT || type == PNG_IEND || length < 0){
+                    return false;
+                }
+                skip(length + 4);
+            }
+        } catch (IOException e) {
+            //读到的内容不完整，无法确定
+        }
+        return true;
+    }
+
+    private ImageInfo parseGif() throws IOException {
+        //"7a"或"9a"
+        skip(2);
+        int width = readUInt16LittleEndian();
+        int height = readUInt16LittleEndian();
+        //透明色在之后的图形控制扩展中，按透明处理
+        return width > 0 && height > 0 ? new ImageInfo(width, height, MIME_GIF, true) : null;
+    }
+
+    private ImageInfo parseWebp() throws IOException {
+        //文件长度
+        skip(4);
+        if(readInt() != WEBP_HEADER){
+            return null;
+        }
+        int chunk = readInt();
+        //块长度
+        skip(4);
+        int width;
+        int height;
+        boolean hasAlpha;
+        if(chunk == VP8_HEADER){
+            //帧标记3字节，起始码9D 01 2A
+            skip(3);
+            if(readUInt8() != 0x9D || readUInt8() != 0x01 || readUInt8() != 0x2A){
+                return null;
+            }
+            width = readUInt16LittleEndian() & 0x3FFF;
+            height = readUInt16LittleEndian() & 0x3FFF;
+            //简单格式的有损WebP没有alpha
+            hasAlpha = false;
+        } else if(chunk == VP8L_HEADER){
+            if(readUInt8() != 0x2F){
+                return null;
+            }
+            int bits = readUInt8() | readUInt8() << 8 | readUInt8() << 16 | readUInt8() << 24;
+            width = (bits & 0x3FFF) + 1;
+            height = ((bits >> 14) & 0x3FFF) + 1;
+            hasAlpha = ((bits >> 28) & 1) != 0;
+        } else if(chunk == VP8X_HEADER){
+            //标志位1字节，保留3字节
+            int flags = readUInt8();
+            skip(3);
+            width = readUInt24LittleEndian() + 1;
+            height = readUInt24LittleEndian() + 1;
+            hasAlpha = (flags & 0x10) != 0;
+        } else {
+            return null;
+        }
+        return width > 0 && height > 0 ? new ImageInfo(width, height, MIME_WEBP, hasAlpha) : null;
+    }
+
+    private int readUInt8() throws IOException {
+        if(mPosition >= MAX_HEADER_BYTES){
+            throw new IOException("image header too long");
+        }
+        int b = mStream.read();
+        if(b == -1){
+            throw new IOException("unexpected end of image header");
+        }
+        mPosition++;
+        return b;
+    }
+
+    private int readUInt16() throws IOException {
+        return readUInt8() << 8 | readUInt8();
+    }
+
+    private int readUInt16LittleEndian() throws IOException {
+        return readUInt8() | readUInt8() << 8;
+    }
+
+    private int readUInt24LittleEndian() throws IOException {
+        return readUInt8() | readUInt8() << 8 | readUInt8() << 16;
+    }
+
+    private int readInt() throws IOException {
+        return readUInt16() << 16 | readUInt16();
+    }
+
+    private void skip(int count) throws IOException {
+        if(count > MAX_HEADER_BYTES - mPosition){
+            //跳过后超出调用者mark的范围，流将无法重置
+            throw new IOException("image header too long");
+        }
+        while(count > 0){
+            long skipped = mStream.skip(count);
+            if(skipped > 0){
+                count -= skipped;
+                mPosition += skipped;
+            } else {
+                //skip不保证能跳过，逐字节读取
+                readUInt8();
+                count--;
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.ailsa.imageloader.imageloader;
+
+/**
+ * 图片的宽高、类型和是否透明，与图片一起存入磁盘缓存，解码时不必再读取一次图片获取宽高
+ */
+
+public class ImageInfo {
+
+    public final int width;
+    public final int height;
+    public final String mimeType;
+    /** 无法从文件头确定时为true */
+    public final boolean hasAlpha;
+
+    public ImageInfo(int width, int height, String mimeType){
+        this(width, height, mimeType, !ImageHeaderParser.MIME_JPEG.equals(mimeType));
+    }
+
+    public ImageInfo(int width, int height, String mimeType, boolean hasAlpha){
+        this.width = width;
+        this.height = height;
+        this.mimeType = mimeType;
+        this.hasAlpha = hasAlpha;
+    }
+
+    /**
+     * 解析{@link #toString()}的结果，格式不正确时返回null
+     */
+    public static ImageInfo parse(String value){
+        if(value == null){
+            return null;
+        }
+        String[] parts = value.trim().split(" ");
+        if(parts.length < 3){
+            return null;
+        }
+        try {
+            int width = Integer.parseInt(parts[0]);
+            int height = Integer.parseInt(parts[1]);
+            if(width <= 0 || height <= 0){
+                return null;
+            }
+            //之前保存的信息没有是否透明，按类型判断
+            if(parts.length < 4){
+                return new ImageInfo(width, height, parts[2]);
+            }
+            return new ImageInfo(width, height, parts[2], !"0".equals(parts[3]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return width + " " + height + " " + mimeType + " " + (hasAlpha ? 1 : 0);
+    }
+}
@@ -1,6 +1,8 @@
 package com.ailsa.imageloader.imageloader;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.Build;
@@ -9,26 +11,38 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.StatFs;
-import android.support.v4.util.LruCache;
+import android.view.Choreographer;
 import android.widget.ImageView;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by ailsa.
@@ -40,206 +54,1468 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class ImageLoader {
 
     private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
-    private static final int CORE_POLL_SIZE = CPU_COUNT + 1;
-    private static final int MAXIMUM_POLL_SIZE = CPU_COUNT * 2 + 1;
+    //解码只占用CPU，线程数与CPU核数相同
+    private static final int DECODE_POOL_SIZE = CPU_COUNT;
+    //磁盘查找只需少量线程，过多反而增加磁盘的随机读
+    private static final int DISK_POOL_SIZE = 2;
+    //下载的耗时主要在等待网络，线程数与CPU无关
+    private static final int NETWORK_POOL_SIZE = 4;
     private static final long KEEP_ALIVE_TIME = 10L;
+    //close后等待正在运行的任务结束的最长时间，秒
+    private static final long CLOSE_TIMEOUT = 10L;
 
     private static final long DISK_CACHE_SIZE = 1024 * 1024 * 50;
+    //磁盘缓存格式变化时增加，旧的缓存会被清除
+    private static final int DISK_CACHE_VERSION = 3;
+    private static final int DISK_CACHE_VALUE_COUNT = 3;
+    //磁盘缓存的分片数，各分片独立加锁，多个线程可以同时写入
+    private static final int DISK_CACHE_SHARDS = 4;
+    //不超过该大小的缩略图合并存放在segment文件中，读取时不必每次打开文件
+    private static final int DISK_CACHE_PACK_THRESHOLD = 32 * 1024;
+    //估算磁盘缓存条目数时使用的平均大小
+    private static final int DISK_CACHE_AVERAGE_ENTRY = 16 * 1024;
     private static final int DISK_CACHE_INDEX = 0;
+    //图片的宽高和类型，见ImageInfo
+    private static final int DISK_INFO_INDEX = 1;
+    //ETag、Last-Modified和过期时间，见HttpCacheInfo
+    private static final int DISK_META_INDEX = 2;
+    //缩略图缓存：按所需尺寸档重新编码的图片，与原图分开计算容量和淘汰
+    private static final long DERIVED_CACHE_SIZE = 1024 * 1024 * 10;
+    private static final int DERIVED_CACHE_VERSION = 2;
+    private static final int DERIVED_CACHE_VALUE_COUNT = 3;
+    private static final int DERIVED_DATA_INDEX = 0;
+    //缩略图本身的宽高和类型
+    private static final int DERIVED_INFO_INDEX = 1;
+    //生成缩略图时原图的版本，见HttpCacheInfo.version()
+    private static final int DERIVED_VERSION_INDEX = 2;
+    //原图像素数至少是解码结果的这么多倍时才保存缩略图，否则缩略图不比原图小多少
+    private static final int DERIVED_MIN_RATIO = 4;
+    private static final int DERIVED_JPEG_QUALITY = 85;
 
-    private static final ThreadFactory mFactory = new ThreadFactory() {
-        private AtomicInteger mCount = new AtomicInteger(1);
+    /** 最近最少使用，与原来的LruCache相同 */
+    public static final int MEMORY_CACHE_LRU = 0;
+    /** W-TinyLFU，滑动长列表时不会挤出常用的图片 */
+    public static final int MEMORY_CACHE_TINY_LFU = 1;
+    //估算内存缓存条目数时使用的平均字节数
+    private static final int MEMORY_CACHE_AVERAGE_ENTRY = 64 * 1024;
+
+    /** 预加载等不急于显示的请求 */
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    /** 当前可见的ImageView */
+    public static final int PRIORITY_HIGH = 2;
+
+    /** 预加载到磁盘缓存，不解码 */
+    public static final int PREFETCH_DISK = 0;
+    /** 预加载并解码放入内存缓存 */
+    public static final int PREFETCH_MEMORY = 1;
+    /** 列表静止 */
+    public static final int SCROLL_IDLE = 0;
+    /** 慢速滑动，正常加载 */
+    public static final int SCROLL_SLOW = 1;
+    /** 快速滑动，暂缓网络下载，停下后自动继续仍在等待的请求 */
+    public static final int SCROLL_FAST = 2;
+
+    //每帧最多显示的图片数和用时，滑动停止后大量图片同时加载完成时分到多帧显示，避免卡顿
+    private static final int DELIVERY_MAX_PER_FRAME = 8;
+    private static final long DELIVERY_FRAME_BUDGET_NANOS = 4 * 1000 * 1000L;
+    //JELLY_BEAN之前没有Choreographer，按60帧每秒的间隔显示
+    private static final long DELIVERY_FRAME_INTERVAL = 16;
+    private static final int MSG_DELIVER = 1;
+    private static final int MSG_DELIVER_NEXT_FRAME = 2;
+
+    //下载到该字节数时先解码一张预览图，小于该大小的图片很快就能完整显示，不需要预览
+    private static final int PREVIEW_BYTES = 16 * 1024;
+    //预览图的宽高为所需尺寸的1/PREVIEW_SCALE
+    private static final int PREVIEW_SCALE = 4;
+
+    //其他线程刚刚下载过同一个磁盘缓存条目
+    private static final int DOWNLOAD_IN_PROGRESS = -1;
+
+    private static final AtomicLong mSequence = new AtomicLong();
+    //优先级高的先执行，优先级相同时后提交的先执行
+    private static final Comparator<Runnable> mPriorityComparator = new Comparator<Runnable>() {
         @Override
-        public Thread newThread(Runnable r) {
-            return new Thread(r, "ImageLoder:"+mCount.getAndIncrement());
+        public int compare(Runnable lhs, Runnable rhs) {
+            LoadTask l = (LoadTask) lhs;
+            LoadTask r = (LoadTask) rhs;
+            if(l.priority != r.priority){
+                return l.priority > r.priority ? -1 : 1;
+            }
+            return l.sequence > r.sequence ? -1 : (l.sequence == r.sequence ? 0 : 1);
         }
     };
-    private static final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(CORE_POLL_SIZE,
-            MAXIMUM_POLL_SIZE,
-            KEEP_ALIVE_TIME,
-            TimeUnit.SECONDS,
-            new LinkedBlockingQueue<Runnable>(),
-            mFactory);
+    //加载分为磁盘查找、解码、下载三个阶段，各自使用独立的线程池，
+    //缓存命中的图片不会排在卡住的下载后面。每个ImageLoader各自持有，close时关闭
+    private final ThreadPoolExecutor mDiskExecutor = newExecutor(DISK_POOL_SIZE, "disk");
+    private final ThreadPoolExecutor mDecodeExecutor = newExecutor(DECODE_POOL_SIZE, "decode");
+    private final ThreadPoolExecutor mNetworkExecutor = newExecutor(NETWORK_POOL_SIZE, "network");
     private Handler mHandler = new Handler(Looper.getMainLooper()){
         @Override
         public void handleMessage(Message msg) {
-            LoadResult result = (LoadResult) msg.obj;
-            ImageView imageView = result.imageView;
-            Bitmap bitmap = result.bitmap;
-            String uri = (String)imageView.getTag();
-            if(uri.equals(result.uri)){
-                imageView.setImageBitmap(bitmap);
+            if(msg.what == MSG_DELIVER){
+                scheduleDelivery();
+            } else {
+                deliverResults();
             }
         }
     };
+    //加载完成等待显示的结果，按帧分批显示
+    private final ArrayDeque<LoadResult> mResults = new ArrayDeque<LoadResult>();
+    //已安排在主线程显示mResults，在持有mResults锁时访问
+    private boolean mDeliveryScheduled;
+    //JELLY_BEAN及以上在主线程中创建
+    private Choreographer.FrameCallback mFrameCallback;
     private Context mContext;
     private ImageResize mImageResize;
-    private LruCache<String, Bitmap> mMemoryCache;
-    private DiskLruCache mDiskCache;
-    private boolean hasDisCache = false;
+    private ImageDownloader mDownloader;
+    //最近请求过的图片的访问频率，决定新下载的图片是否写入磁盘缓存
+    private FrequencySketch mAdmissionSketch;
+    private BitmapPool mBitmapPool;
+    //正在显示或等待显示的Bitmap的引用计数，被内存缓存淘汰后需等计数归零才能放入BitmapPool
+    private final HashMap<Bitmap, Integer> mBitmapRefs = new HashMap<Bitmap, Integer>();
+    private final Set<Bitmap> mEvictedBitmaps = new HashSet<Bitmap>();
+    //通过公开方法交给调用者的Bitmap，无法知道何时不再使用，不能复用
+    private final Set<Bitmap> mPinnedBitmaps = Collections.newSetFromMap(new WeakHashMap<Bitmap, Boolean>());
+    //ImageView当前显示的Bitmap，只在主线程访问
+    private final WeakHashMap<ImageView, DisplayRef> mDisplayedBitmaps = new WeakHashMap<ImageView, DisplayRef>();
+    //ImageView没有解除绑定就被回收时，它的DisplayRef进入mDisplayQueue，据此释放显示的Bitmap
+    private final Set<DisplayRef> mDisplayRefs = new HashSet<DisplayRef>();
+    private final ReferenceQueue<ImageView> mDisplayQueue = new ReferenceQueue<ImageView>();
+    private MemoryCache<String, Bitmap> mMemoryCache;
+    //创建时的内存缓存容量，字节
+    private final int mDefaultMemoryCacheSize;
+    //系统内存不足时按级别缩减内存缓存和BitmapPool
+    private final ComponentCallbacks2 mTrimCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            trimMemory(level);
+        }
+
+        @Override
+        public void onLowMemory() {
+            trimMemory(TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    };
+    //同一url在内存缓存中的各个尺寸，hashKey(url) -> 内存缓存的key
+    private final HashMap<String, Set<String>> mMemoryVariants = new HashMap<String, Set<String>>();
+    private ShardedDiskCache mDiskCache;
+    //磁盘缓存journal的写入方式
+    private final int mDiskCacheDurability;
+    //打开失败时为null，只使用原图
+    private ShardedDiskCache mDerivedCache;
+    private volatile boolean hasDisCache = false;
+    //磁盘缓存在后台线程打开，完成前提交的任务先放在mPendingTasks中
+    private final CountDownLatch mDiskCacheReady = new CountDownLatch(1);
+    private final List<LoadTask> mPendingTasks = new ArrayList<LoadTask>();
+    //快速滑动时暂缓下载的任务，只在持有mLoadingTasks锁时访问
+    private final List<LoadTask> mDeferredTasks = new ArrayList<LoadTask>();
+    private int mScrollState = SCROLL_IDLE;
+    //正在写入磁盘缓存的下载，hashKey(url) -> 下载结束时countDown。
+    //同一url不同尺寸的任务各自加载，下载只进行一次，其他任务等待后从磁盘缓存解码
+    private final HashMap<String, CountDownLatch> mActiveDownloads = new HashMap<String, CountDownLatch>();
+    //正在加载的任务，同一个key的请求共用一个任务
+    private final HashMap<String, LoadTask> mLoadingTasks = new HashMap<String, LoadTask>();
+    //每个ImageView当前等待的任务，ImageView被复用时据此取消旧的任务
+    private final WeakHashMap<ImageView, LoadTask> mTargetTasks = new WeakHashMap<ImageView, LoadTask>();
     public ImageLoader(Context context){
+        this(context, MEMORY_CACHE_TINY_LFU);
+    }
+
+    /**
+     * @param memoryCachePolicy 内存缓存的淘汰策略，{@link #MEMORY_CACHE_LRU}或{@link #MEMORY_CACHE_TINY_LFU}
+     */
+    public ImageLoader(Context context, int memoryCachePolicy){
+        this(context, memoryCachePolicy, DiskLruCache.DURABILITY_GROUP_COMMIT);
+    }
+
+    /**
+     * @param diskCacheDurability 磁盘缓存journal的写入方式：{@link DiskLruCache#DURABILITY_GROUP_COMMIT}批量写入，
+     *                            崩溃时可能丢失最近的少量条目；{@link DiskLruCache#DURABILITY_SYNC}每次写入都刷新到文件
+     */
+    public ImageLoader(Context context, int memoryCachePolicy, int diskCacheDurability){
         mContext = context;
-        mImageResize = new ImageResize();
-        int cacheSize = (int) Runtime.getRuntime().maxMemory() / 1024 / 8;
-        mMemoryCache = new LruCache<String, Bitmap>(cacheSize){
+        mDiskCacheDurability = diskCacheDurability;
+        mBitmapPool = new BitmapPool((int) (Runtime.getRuntime().maxMemory() / 32));
+        mImageResize = new ImageResize(mBitmapPool);
+        mDownloader = new ImageDownloader();
+        mAdmissionSketch = new FrequencySketch((int) (DISK_CACHE_SIZE / DISK_CACHE_AVERAGE_ENTRY));
+        mDefaultMemoryCacheSize = (int) (Runtime.getRuntime().maxMemory() / 8);
+        mMemoryCache = createMemoryCache(memoryCachePolicy, mDefaultMemoryCacheSize);
+        mContext.registerComponentCallbacks(mTrimCallbacks);
+        //打开磁盘缓存需要读取journal，不在主线程中进行
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                initDiskCache();
+            }
+        }, "ImageLoder:init").start();
+    }
+
+    private MemoryCache<String, Bitmap> createMemoryCache(int policy, int maxSize){
+        if(policy == MEMORY_CACHE_LRU){
+            return new LruMemoryCache<String, Bitmap>(maxSize){
+                @Override
+                protected int sizeOf(String key, Bitmap value) {
+                    return sizeOfBitmap(value);
+                }
+
+                @Override
+                protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                    onBitmapRemoved(key, oldValue, newValue);
+                }
+            };
+        }
+        return new TinyLfuMemoryCache<String, Bitmap>(maxSize, Math.max(16, maxSize / MEMORY_CACHE_AVERAGE_ENTRY)){
             @Override
             protected int sizeOf(String key, Bitmap value) {
-                return value.getRowBytes() * value.getHeight() / 1024;
+                return sizeOfBitmap(value);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                onBitmapRemoved(key, oldValue, newValue);
             }
         };
-        File diskCacheDir = getDiskCacheDir(mContext, "image");
-        if(!diskCacheDir.exists()){
-            diskCacheDir.mkdirs();
+    }
+
+    /**
+     * 按实际占用的字节计算，KITKAT及以上复用的Bitmap可能大于图片本身
+     */
+    private int sizeOfBitmap(Bitmap bitmap){
+        return BitmapPool.getBitmapSize(bitmap);
+    }
+
+    /**
+     * 按onTrimMemory的级别缩减内存缓存和BitmapPool，级别越高保留得越少，之后仍可重新填满
+     *
+     * @param level ComponentCallbacks2中的TRIM_MEMORY_*
+     */
+    public void trimMemory(int level){
+        releaseCollectedViews();
+        int percent;
+        if(level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE){
+            //进程随时可能被杀，全部释放
+            percent = 0;
+        } else if(level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND){
+            percent = 10;
+        } else if(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL){
+            //UI_HIDDEN高于RUNNING_CRITICAL，保留的不能比它多
+            percent = 25;
+        } else if(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW){
+            percent = 50;
+        } else if(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE){
+            percent = 75;
+        } else {
+            return ;
         }
-        if(getUsableSpace(diskCacheDir) > DISK_CACHE_SIZE){
-            try {
-                mDiskCache = DiskLruCache.open(diskCacheDir, 1, 1, DISK_CACHE_SIZE);
-                hasDisCache = true;
-            } catch (IOException e) {
-                e.printStackTrace();
+        if(percent == 0){
+            mMemoryCache.evictAll();
+            mBitmapPool.clear();
+            return ;
+        }
+        //先缩减内存缓存，被淘汰的Bitmap会进入BitmapPool
+        mMemoryCache.trimToSize((int) ((long) mMemoryCache.maxSize() * percent / 100));
+        mBitmapPool.trimToSize((int) ((long) mBitmapPool.maxSize() * percent / 100));
+    }
+
+    /**
+     * 不再使用时调用，如Activity的onDestroy中：取消所有任务，停止线程池，清空内存缓存，
+     * 正在运行的任务结束后在后台关闭磁盘缓存。关闭后不能再使用。在主线程中调用
+     */
+    public void close(){
+        mContext.unregisterComponentCallbacks(mTrimCallbacks);
+        synchronized (mLoadingTasks){
+            for(LoadTask task : new ArrayList<LoadTask>(mLoadingTasks.values())){
+                task.cancel();
             }
+            mLoadingTasks.clear();
+            mTargetTasks.clear();
+            mPendingTasks.clear();
+            mDeferredTasks.clear();
+        }
+        final ThreadPoolExecutor[] executors = {mDiskExecutor, mDecodeExecutor, mNetworkExecutor};
+        for(ThreadPoolExecutor executor : executors){
+            executor.shutdownNow();
+        }
+        mHandler.removeCallbacksAndMessages(null);
+        if(mFrameCallback != null){
+            Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+        }
+        synchronized (mResults){
+            for(LoadResult result : mResults){
+                releaseBitmap(result.bitmap);
+            }
+            mResults.clear();
+            mDeliveryScheduled = false;
+        }
+        mMemoryCache.evictAll();
+        mBitmapPool.clear();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                awaitDiskCache();
+                try {
+                    for(ThreadPoolExecutor executor : executors){
+                        executor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                try {
+                    if(mDiskCache != null){
+                        mDiskCache.close();
+                    }
+                    if(mDerivedCache != null){
+                        mDerivedCache.close();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "ImageLoder:close").start();
+    }
+
+    /**
+     * 修改内存缓存的容量，如切到后台时缩小以降低被系统杀死的可能，回到前台时再恢复
+     *
+     * @param maxSize 字节数，小于等于0时恢复为默认容量
+     */
+    public void resizeMemoryCache(int maxSize){
+        mMemoryCache.resize(maxSize > 0 ? maxSize : mDefaultMemoryCacheSize);
+    }
+
+    private void onBitmapRemoved(String key, Bitmap oldValue, Bitmap newValue){
+        if(newValue == null){
+            removeMemoryVariant(key);
+        }
+        if(oldValue != newValue){
+            recycleBitmap(oldValue);
+        }
+    }
+
+    /**
+     * 队列无界时线程数不会超过核心线程数，因此核心线程数即最大线程数，空闲时超时退出。
+     * close之后提交的任务直接丢弃
+     */
+    private static ThreadPoolExecutor newExecutor(int size, final String name){
+        ThreadFactory factory = new ThreadFactory() {
+            private AtomicInteger mCount = new AtomicInteger(1);
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "ImageLoder:" + name + "-" + mCount.getAndIncrement());
+            }
+        };
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(size,
+                size,
+                KEEP_ALIVE_TIME,
+                TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(16, mPriorityComparator),
+                factory,
+                new ThreadPoolExecutor.DiscardPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private void initDiskCache(){
+        try {
+            File diskCacheDir = getDiskCacheDir(mContext, "image");
+            if(!diskCacheDir.exists()){
+                diskCacheDir.mkdirs();
+            }
+            if(getUsableSpace(diskCacheDir) > DISK_CACHE_SIZE){
+                try {
+                    mDiskCache = ShardedDiskCache.open(diskCacheDir, DISK_CACHE_VERSION, DISK_CACHE_VALUE_COUNT,
+                            DISK_CACHE_SIZE, DISK_CACHE_SHARDS, DISK_CACHE_PACK_THRESHOLD, mDiskCacheDurability);
+                    hasDisCache = true;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if(hasDisCache){
+                try {
+                    mDerivedCache = ShardedDiskCache.open(getDiskCacheDir(mContext, "image_derived"), DERIVED_CACHE_VERSION,
+                            DERIVED_CACHE_VALUE_COUNT, DERIVED_CACHE_SIZE, DISK_CACHE_SHARDS, DISK_CACHE_PACK_THRESHOLD,
+                            mDiskCacheDurability);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            synchronized (mLoadingTasks){
+                mDiskCacheReady.countDown();
+                for(LoadTask task : mPendingTasks){
+                    task.executor().execute(task);
+                }
+                mPendingTasks.clear();
+            }
+        }
+    }
+
+    /**
+     * 等待磁盘缓存打开，被中断时直接返回
+     */
+    private void awaitDiskCache(){
+        try {
+            mDiskCacheReady.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 在持有mLoadingTasks锁时调用
+     */
+    private void scheduleTask(LoadTask task){
+        if(mDiskCacheReady.getCount() > 0){
+            mPendingTasks.add(task);
+        } else {
+            task.executor().execute(task);
         }
     }
 
     public void putMemmoryCache(String key, Bitmap bitmap){
-        if(mMemoryCache.get(key) == null){
-            mMemoryCache.put(key, bitmap);
+        if(!mMemoryCache.containsKey(key)){
+            addMemoryVariant(key);
+            if(isPrefetching(key)){
+                mMemoryCache.putPrefetched(key, bitmap);
+            } else {
+                mMemoryCache.put(key, bitmap);
+            }
+        }
+    }
+
+    /**
+     * key对应的是还没有ImageView等待的预加载任务
+     */
+    private boolean isPrefetching(String key){
+        synchronized (mLoadingTasks){
+            LoadTask task = mLoadingTasks.get(key);
+            return task != null && task.prefetch && task.targets.isEmpty();
         }
     }
 
     public Bitmap getMemmoryCache(String key){
-        return mMemoryCache.get(key);
+        return pinBitmap(mMemoryCache.get(key));
     }
 
     public void bindBitmap(final String url, final ImageView imageView, final int imageWidth, final int imageHeight){
+        bindBitmap(url, imageView, imageWidth, imageHeight, PRIORITY_NORMAL);
+    }
+
+    /**
+     * @param priority 加载的优先级，{@link #PRIORITY_LOW}、{@link #PRIORITY_NORMAL}或{@link #PRIORITY_HIGH}
+     */
+    public void bindBitmap(final String url, final ImageView imageView, final int imageWidth, final int imageHeight, int priority){
+        bindBitmap(url, imageView, imageWidth, imageHeight, priority, null);
+    }
+
+    /**
+     * @param config 解码使用的Config，为null时根据文件头自动选择：不透明的图片使用RGB_565，其他使用ARGB_8888
+     */
+    public void bindBitmap(final String url, final ImageView imageView, final int imageWidth, final int imageHeight, int priority,
+                           Bitmap.Config config){
+        bindBitmap(url, imageView, imageWidth, imageHeight, priority, config, false);
+    }
+
+    /**
+     * @param preview 为true时先显示低分辨率的预览图，再换成完整的图片：内存缓存中有同一url较小的图片时立即显示，
+     *                否则下载JPEG时用已下载的部分解码出大幅缩小的预览图
+     */
+    public void bindBitmap(final String url, final ImageView imageView, final int imageWidth, final int imageHeight, int priority,
+                           Bitmap.Config config, boolean preview){
         imageView.setTag(url);
-        Bitmap bitmap = loadBitmapFromMemmoryCache(url);
+        String key = memoryCacheKey(url, imageWidth, imageHeight, config);
+        Bitmap bitmap;
+        synchronized (mBitmapRefs){
+            //取出后立即持有引用，防止显示前被其他线程淘汰复用
+            bitmap = mMemoryCache.get(key);
+            if(bitmap != null){
+                retainBitmap(bitmap);
+            }
+        }
         if(bitmap != null){
-            imageView.setImageBitmap(bitmap);
+            cancelRequest(imageView);
+            displayBitmap(imageView, bitmap);
+            releaseBitmap(bitmap);
             return ;
         }
-        Runnable loadTask = new Runnable() {
-            @Override
-            public void run() {
-                Bitmap bitmap = loadBitmap(url, imageWidth, imageHeight);
+        synchronized (mLoadingTasks){
+            LoadTask current = mTargetTasks.get(imageView);
+            if(current != null){
+                if(current.key.equals(key)){
+                    current.reschedule(Math.max(current.priority, priority));
+                    return ;
+                }
+                detachTarget(current, imageView);
+            }
+            LoadTask task = mLoadingTasks.get(key);
+            if(task == null){
+                task = new LoadTask(key, url, imageWidth, imageHeight, config, priority, false, true);
+                mLoadingTasks.put(key, task);
+                scheduleTask(task);
+            } else {
+                //已有相同图片在加载时，等待其结果即可，只预加载到磁盘的任务改为同时解码
+                task.decode = true;
+                task.reschedule(Math.max(task.priority, priority));
+            }
+            if(preview){
+                task.preview = true;
+            }
+            task.addTarget(imageView);
+            mTargetTasks.put(imageView, task);
+        }
+        if(preview){
+            displaySmallerVariant(url, imageView, imageWidth, imageHeight);
+        }
+    }
+
+    /**
+     * 内存缓存中有同一url较小的图片时，先放大显示其中最大的一份作为预览
+     */
+    private void displaySmallerVariant(String url, ImageView imageView, int imageWidth, int imageHeight){
+        int width = bucketSize(imageWidth);
+        int height = bucketSize(imageHeight);
+        Bitmap bitmap = null;
+        synchronized (mBitmapRefs){
+            int[] best = null;
+            String bestKey = null;
+            synchronized (mMemoryVariants){
+                Set<String> variants = mMemoryVariants.get(hashKey(url));
+                if(variants != null){
+                    for(String variant : variants){
+                        int[] size = parseVariantSize(variant);
+                        if(size != null && size[0] <= width && size[1] <= height
+                                && (best == null || size[0] * size[1] > best[0] * best[1])){
+                            best = size;
+                            bestKey = variant;
+                        }
+                    }
+                }
+            }
+            if(bestKey != null){
+                bitmap = mMemoryCache.get(bestKey);
                 if(bitmap != null){
-                    LoadResult loadResult = new LoadResult(imageView, url, bitmap);
-                    mHandler.obtainMessage(1, loadResult).sendToTarget();
+                    retainBitmap(bitmap);
                 }
             }
-        };
-        mExecutor.execute(loadTask);
+        }
+        if(bitmap != null){
+            displayBitmap(imageView, bitmap);
+            releaseBitmap(bitmap);
+        }
+    }
+
+    /**
+     * 读取已下载的前{@link #PREVIEW_BYTES}字节解码出大幅缩小的预览图，之后把is重置到读取前的位置。
+     * 渐进式JPEG的前几次扫描已包含整张图片的低清晰度内容，普通JPEG则显示已下载的上半部分
+     *
+     * @return 不是JPEG或者图片不大，不需要预览时返回null
+     */
+    private Bitmap decodePreview(InputStream is, ImageInfo info, int imageWidth, int imageHeight) throws IOException {
+        if(!ImageHeaderParser.MIME_JPEG.equals(info.mimeType)){
+            return null;
+        }
+        byte[] data = new byte[PREVIEW_BYTES];
+        int count = 0;
+        is.mark(PREVIEW_BYTES + 1);
+        try {
+            int read;
+            while(count < data.length && (read = is.read(data, count, data.length - count)) != -1){
+                count += read;
+            }
+        } finally {
+            is.reset();
+        }
+        if(count < data.length || Thread.currentThread().isInterrupted()){
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.outWidth = info.width;
+        options.outHeight = info.height;
+        options.inSampleSize = mImageResize.calculateInSampleSize(options,
+                Math.max(1, bucketSize(imageWidth) / PREVIEW_SCALE), Math.max(1, bucketSize(imageHeight) / PREVIEW_SCALE));
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        return BitmapFactory.decodeByteArray(data, 0, count, options);
+    }
+
+    /**
+     * 设置列表的滑动状态。快速滑动时内存和磁盘缓存中的图片照常加载，需要下载的请求暂缓，
+     * 等状态变为{@link #SCROLL_SLOW}或{@link #SCROLL_IDLE}后，仍有ImageView等待的请求继续下载
+     *
+     * @param state {@link #SCROLL_IDLE}、{@link #SCROLL_SLOW}或{@link #SCROLL_FAST}
+     */
+    public void setScrollState(int state){
+        synchronized (mLoadingTasks){
+            mScrollState = state;
+            if(state != SCROLL_FAST){
+                for(LoadTask task : mDeferredTasks){
+                    task.executor().execute(task);
+                }
+                mDeferredTasks.clear();
+            }
+        }
+    }
+
+    /**
+     * 以最低优先级预先加载即将显示的图片，之后bindBitmap相同的图片时直接使用预加载的任务或结果
+     *
+     * @param target {@link #PREFETCH_DISK}或{@link #PREFETCH_MEMORY}
+     */
+    public void prefetch(List<String> urls, int imageWidth, int imageHeight, int target){
+        prefetch(urls, imageWidth, imageHeight, target, null);
+    }
+
+    /**
+     * @param config 与bindBitmap使用的相同，null表示自动选择
+     */
+    public void prefetch(List<String> urls, int imageWidth, int imageHeight, int target, Bitmap.Config config){
+        boolean decode = target == PREFETCH_MEMORY;
+        synchronized (mLoadingTasks){
+            for(String url : urls){
+                String key = memoryCacheKey(url, imageWidth, imageHeight, config);
+                if(isInMemoryCache(key)){
+                    continue;
+                }
+                LoadTask task = mLoadingTasks.get(key);
+                if(task != null){
+                    if(decode){
+                        task.decode = true;
+                    }
+                    continue;
+                }
+                task = new LoadTask(key, url, imageWidth, imageHeight, config, PRIORITY_LOW, true, decode);
+                mLoadingTasks.put(key, task);
+                scheduleTask(task);
+            }
+        }
+    }
+
+    /**
+     * 取消所有还没有ImageView等待的预加载任务，如滑动方向改变时
+     */
+    public void cancelPrefetch(){
+        synchronized (mLoadingTasks){
+            for(Iterator<LoadTask> i = mLoadingTasks.values().iterator(); i.hasNext(); ){
+                LoadTask task = i.next();
+                if(task.prefetch && task.targets.isEmpty()){
+                    i.remove();
+                    task.cancel();
+                }
+            }
+        }
+    }
+
+    /**
+     * 不经过mMemoryCache.get判断，避免预加载影响内存缓存的访问频率和顺序
+     */
+    private boolean isInMemoryCache(String key){
+        synchronized (mMemoryVariants){
+            Set<String> variants = mMemoryVariants.get(key.substring(0, key.indexOf('_')));
+            return variants != null && variants.contains(key);
+        }
+    }
+
+    /**
+     * 调整url尚在队列中的加载任务的优先级，如列表项进入或离开可见区域时
+     */
+    public void setPriority(String url, int priority){
+        synchronized (mLoadingTasks){
+            for(LoadTask task : mLoadingTasks.values()){
+                if(task.url.equals(url) && task.priority != priority){
+                    task.reschedule(priority);
+                }
+            }
+        }
+    }
+
+    /**
+     * 取消imageView上尚未完成的加载请求，没有其他ImageView等待时，
+     * 该任务会从线程池队列中移除，正在执行的下载和解码会被中断
+     */
+    public void cancelRequest(ImageView imageView){
+        synchronized (mLoadingTasks){
+            LoadTask task = mTargetTasks.get(imageView);
+            if(task != null){
+                detachTarget(task, imageView);
+            }
+        }
+    }
+
+    private void detachTarget(LoadTask task, ImageView imageView){
+        mTargetTasks.remove(imageView);
+        task.targets.remove(imageView);
+        if(task.targets.isEmpty()){
+            mLoadingTasks.remove(task.key);
+            task.cancel();
+        }
     }
 
     public Bitmap loadBitmap(String url, int imageWidth, int imageHeight){
+        return handOverBitmap(loadBitmap(url, imageWidth, imageHeight, null, new BitmapFactory.Options()));
+    }
+
+    /**
+     * 返回的Bitmap已由调用者持有一个引用，使用完后需调用{@link #releaseBitmap(Bitmap)}
+     */
+    private Bitmap loadBitmap(String url, int imageWidth, int imageHeight, Bitmap.Config config, BitmapFactory.Options options){
 //        Bitmap bitmap = loadBitmapFromMemmoryCache(url);
 //        if(bitmap != null){
 //            return bitmap;
 //        }
-        Bitmap bitmap = loadBitmapFromDiskCache(url, imageWidth, imageHeight);
+        Bitmap bitmap = loadBitmapFromLargerVariant(url, imageWidth, imageHeight, config);
         if(bitmap != null){
             return bitmap;
         }
-        bitmap = loadBitmapFromHttp(url, imageWidth, imageHeight);
-        if(bitmap == null && !hasDisCache){
+        mAdmissionSketch.increment(hashKey(url));
+        bitmap = loadBitmapFromDiskCache(url, imageWidth, imageHeight, config, options, null);
+        if(bitmap != null || Thread.currentThread().isInterrupted()){
+            return bitmap;
+        }
+        bitmap = loadBitmapFromHttp(url, imageWidth, imageHeight, config, options, null, null);
+        if(bitmap == null && !hasDisCache && !Thread.currentThread().isInterrupted()){
             bitmap = downloadBitmapFromUrl(url);
         }
         return bitmap;
     }
 
-    public Bitmap loadBitmapFromMemmoryCache(String url){
-        String key = hashKey(url);
+    public Bitmap loadBitmapFromMemmoryCache(String url, int imageWidth, int imageHeight){
+        String key = memoryCacheKey(url, imageWidth, imageHeight);
         Bitmap bitmap = getMemmoryCache(key);
         return bitmap;
     }
 
+    /**
+     * 内存缓存中有同一url更大尺寸的图片时，直接缩小得到所需尺寸，不再读取磁盘重新解码
+     */
+    private Bitmap loadBitmapFromLargerVariant(String url, int imageWidth, int imageHeight, Bitmap.Config config){
+        String key = memoryCacheKey(url, imageWidth, imageHeight, config);
+        //缩放后的图片与原图的Config相同，只能使用Config相同的
+        String suffix = configSuffix(config);
+        int width = bucketSize(imageWidth);
+        int height = bucketSize(imageHeight);
+        Bitmap source = null;
+        synchronized (mBitmapRefs){
+            //选取满足尺寸的最小的一份
+            int[] best = null;
+            String bestKey = null;
+            synchronized (mMemoryVariants){
+                Set<String> variants = mMemoryVariants.get(hashKey(url));
+                if(variants != null){
+                    for(String variant : variants){
+                        int[] size = parseVariantSize(variant);
+                        if(size != null && size[0] >= width && size[1] >= height && !variant.equals(key)
+                                && variant.endsWith(suffix)
+                                && (best == null || size[0] * size[1] < best[0] * best[1])){
+                            best = size;
+                            bestKey = variant;
+                        }
+                    }
+                }
+            }
+            if(bestKey != null){
+                source = mMemoryCache.get(bestKey);
+                if(source != null){
+                    retainBitmap(source);
+                }
+            }
+        }
+        if(source == null){
+            return null;
+        }
+        //与解码时的inSampleSize一样，保证缩小后宽高都不小于所需尺寸
+        float scale = Math.max((float) width / source.getWidth(), (float) height / source.getHeight());
+        if(scale >= 1){
+            return source;
+        }
+        int scaledWidth = Math.max(1, Math.round(source.getWidth() * scale));
+        int scaledHeight = Math.max(1, Math.round(source.getHeight() * scale));
+        if(scaledWidth == source.getWidth() && scaledHeight == source.getHeight()){
+            //取整后尺寸不变时createScaledBitmap返回source本身，不能以第二个key放入内存缓存，
+            //否则其中一个key被淘汰时仍在缓存和显示的Bitmap会进入BitmapPool
+            return source;
+        }
+        Bitmap bitmap = Bitmap.createScaledBitmap(source, scaledWidth, scaledHeight, true);
+        releaseBitmap(source);
+        if(bitmap != null){
+            retainBitmap(bitmap);
+            putMemmoryCache(key, bitmap);
+        }
+        return bitmap;
+    }
+
     public Bitmap loadBitmapFromHttp(String url, int imageWidth, int imageHeight){
+        return handOverBitmap(loadBitmapFromHttp(url, imageWidth, imageHeight, null, new BitmapFactory.Options(), null, null));
+    }
+
+    /**
+     * 下载的同时写入磁盘缓存并解码，不必等下载完成后再从磁盘读取解码
+     *
+     * @param cached 磁盘缓存中已过期的图片的缓存信息，不为null时发送条件请求，
+     *               返回304或网络不可用时仍使用磁盘缓存中的图片
+     * @param task 需要预览图时将预览图交给task显示，可以为null
+     */
+    private Bitmap loadBitmapFromHttp(String url, final int imageWidth, final int imageHeight, final Bitmap.Config config,
+                                      final BitmapFactory.Options options, HttpCacheInfo cached, final LoadTask task){
+        awaitDiskCache();
         if(!hasDisCache){
             return null;
         }
         String key = hashKey(url);
+        final Bitmap[] result = new Bitmap[1];
+        final ImageInfo[] info = new ImageInfo[1];
+        HttpCacheInfo[] response = new HttpCacheInfo[1];
+        ImageDownloader.StreamReader reader = new ImageDownloader.StreamReader() {
+            @Override
+            public void read(InputStream is) throws IOException {
+                BufferedInputStream bis = new BufferedInputStream(is);
+                info[0] = mImageResize.readImageInfo(bis);
+                if(info[0] != null){
+                    if(task != null && task.preview){
+                        Bitmap preview = decodePreview(bis, info[0], imageWidth, imageHeight);
+                        if(preview != null){
+                            task.deliverPreview(preview);
+                        }
+                    }
+                    options.inPreferredConfig = decodeConfig(config, info[0]);
+                    result[0] = mImageResize.decodeBitmapFromStream(bis, bucketSize(imageWidth), bucketSize(imageHeight), options, info[0]);
+                }
+            }
+        };
+        try {
+            if(cached == null && !admitToDiskCache(key)){
+                //滑动时一闪而过的图片只解码显示，不挤掉磁盘缓存中常用的图片
+                if(!mDownloader.downloadUrlToStream(url, new DiscardOutputStream(), reader)){
+                    return null;
+                }
+                if(result[0] != null){
+                    retainBitmap(result[0]);
+                    putMemmoryCache(memoryCacheKey(url, imageWidth, imageHeight, config), result[0]);
+                    return result[0];
+                }
+                if(Thread.currentThread().isInterrupted()){
+                    return null;
+                }
+                //下载的内容已丢弃，边下载边解码失败(如inBitmap不能复用、文件头太长无法重置)时
+                //写入磁盘缓存再解码，不返回空结果
+            }
+            int status;
+            while((status = downloadToDiskCache(key, url, reader, info, cached, response)) == DOWNLOAD_IN_PROGRESS){
+                //其他线程已经下载完成，从磁盘缓存解码；那次下载失败或被取消时再自己下载
+                Bitmap bitmap = loadBitmapFromDiskCache(url, imageWidth, imageHeight, config, options, task);
+                if(bitmap != null || Thread.currentThread().isInterrupted()){
+                    return bitmap;
+                }
+            }
+            if(status != ImageDownloader.RESULT_OK){
+                //未修改或网络不可用时仍显示磁盘缓存中的图片
+                if(cached != null && !Thread.currentThread().isInterrupted()){
+                    return loadBitmapFromDiskCache(url, imageWidth, imageHeight, config, options, task);
+                }
+                return null;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Bitmap bitmap = result[0];
+        if(bitmap == null){
+            //边下载边解码失败，再从磁盘缓存解码一次
+            return loadBitmapFromDiskCache(url, imageWidth, imageHeight, config, options, task);
+        }
+        retainBitmap(bitmap);
+        putMemmoryCache(memoryCacheKey(url, imageWidth, imageHeight, config), bitmap);
+        saveDerived(task, url, imageWidth, imageHeight, config, bitmap, info[0], response[0]);
+        return bitmap;
+    }
+
+    /**
+     * 下载url写入磁盘缓存，reader同时读取下载的内容并把图片信息放在info[0]中
+     *
+     * @param response 返回服务器响应的缓存信息
+     * @return ImageDownloader.RESULT_*，其他线程正在下载同一url时等它结束，返回{@link #DOWNLOAD_IN_PROGRESS}
+     */
+    private int downloadToDiskCache(String key, String url, ImageDownloader.StreamReader reader,
+                                    ImageInfo[] info, HttpCacheInfo cached, HttpCacheInfo[] response) throws IOException {
+        CountDownLatch running;
+        CountDownLatch latch = new CountDownLatch(1);
+        synchronized (mActiveDownloads){
+            running = mActiveDownloads.get(key);
+            if(running == null){
+                mActiveDownloads.put(key, latch);
+            }
+        }
+        if(running != null){
+            try {
+                running.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return DOWNLOAD_IN_PROGRESS;
+        }
         try {
             DiskLruCache.Editor editor = mDiskCache.edit(key);
-            if(editor != null){
-                OutputStream os = editor.newOutputStream(DISK_CACHE_INDEX);
-                if(downloadUrlToStream(url, os)){
-                    editor.commit();
-                } else{
-                    editor.abort();
+            if(editor == null){
+                //同一条目的写入都在mActiveDownloads中排队，不应出现
+                return ImageDownloader.RESULT_FAILED;
+            }
+            OutputStream os = editor.newOutputStream(DISK_CACHE_INDEX);
+            int status = mDownloader.download(url, os, reader, cached, response);
+            if(status == ImageDownloader.RESULT_OK){
+                editor.set(DISK_INFO_INDEX, info[0] != null ? info[0].toString() : "");
+                editor.set(DISK_META_INDEX, response[0].toString());
+                editor.commit();
+            } else {
+                editor.abort();
+                if(status == ImageDownloader.RESULT_NOT_MODIFIED){
+                    updateCacheInfo(key, response[0]);
                 }
             }
-            mDiskCache.flush();
+            return status;
+        } finally {
+            synchronized (mActiveDownloads){
+                mActiveDownloads.remove(key);
+            }
+            latch.countDown();
+        }
+    }
+
+    /**
+     * 预加载到磁盘缓存，只读取图片头部得到宽高，不解码。
+     * 与普通下载一样经过准入判断，预加载不计入访问频率，磁盘缓存已满时不会挤掉常用的图片
+     */
+    private void prefetchToDiskCache(String url){
+        awaitDiskCache();
+        if(!hasDisCache){
+            return ;
+        }
+        String key = hashKey(url);
+        if(!admitToDiskCache(key)){
+            return ;
+        }
+        final ImageInfo[] info = new ImageInfo[1];
+        ImageDownloader.StreamReader reader = new ImageDownloader.StreamReader() {
+            @Override
+            public void read(InputStream is) throws IOException {
+                info[0] = mImageResize.readImageInfo(new BufferedInputStream(is));
+            }
+        };
+        try {
+            downloadToDiskCache(key, url, reader, info, null, new HttpCacheInfo[1]);
         } catch (IOException e) {
             e.printStackTrace();
         }
-        return loadBitmapFromDiskCache(url, imageWidth, imageHeight);
+    }
+
+    /**
+     * 服务器确认图片未修改，只更新磁盘缓存中的过期时间
+     */
+    private void updateCacheInfo(String key, HttpCacheInfo info){
+        try {
+            DiskLruCache.Editor editor = mDiskCache.edit(key);
+            if(editor != null){
+                editor.set(DISK_META_INDEX, info.toString());
+                editor.commit();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * TinyLFU准入策略：磁盘缓存已满时，只有估计访问频率高于将被淘汰的图片才写入
+     */
+    private boolean admitToDiskCache(String key){
+        String victim = mDiskCache.victimFor(key);
+        if(victim == null || victim.equals(key)){
+            return true;
+        }
+        return mAdmissionSketch.frequency(key) > mAdmissionSketch.frequency(victim);
     }
 
     public Bitmap loadBitmapFromDiskCache(String url, int imageWidth, int imageHeight){
+        return handOverBitmap(loadBitmapFromDiskCache(url, imageWidth, imageHeight, null, new BitmapFactory.Options(), null));
+    }
+
+    /**
+     * 先查找缩略图缓存，没有时解码原图
+     */
+    private Bitmap loadBitmapFromDiskCache(String url, int imageWidth, int imageHeight, Bitmap.Config config,
+                                           BitmapFactory.Options options, LoadTask task){
+        awaitDiskCache();
         if(!hasDisCache){
             return null;
         }
-        String key = hashKey(url);
-        Bitmap bitmap = null;
         try {
-            DiskLruCache.Snapshot snapshot = mDiskCache.get(key);
+            DiskLruCache.Snapshot snapshot = mDiskCache.get(hashKey(url));
             if(snapshot != null){
-                FileInputStream is = (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
-                FileDescriptor fd = is.getFD();
-                bitmap = mImageResize.decodeBitmapFromFileDescriptor(fd, imageWidth, imageHeight);
-                if(bitmap != null) {
-                    putMemmoryCache(key, bitmap);
+                HttpCacheInfo cacheInfo = readCacheInfo(snapshot);
+                DiskLruCache.Snapshot derived = findDerived(url, imageWidth, imageHeight, config, cacheInfo);
+                if(derived != null){
+                    Bitmap bitmap = decodeDerived(derived, url, imageWidth, imageHeight, config, options);
+                    if(bitmap != null){
+                        snapshot.close();
+                        return bitmap;
+                    }
                 }
+                return decodeSnapshot(snapshot, url, imageWidth, imageHeight, config, options, cacheInfo, task);
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
-        return bitmap;
+        return null;
     }
 
-    public boolean downloadUrlToStream(String urlString, OutputStream outputStream){
-        HttpURLConnection connection = null;
-        BufferedOutputStream bos = null;
-        BufferedInputStream bis = null;
+    /**
+     * 读取磁盘缓存中图片的缓存信息，snapshot中的这一项只能读取一次
+     */
+    private static HttpCacheInfo readCacheInfo(DiskLruCache.Snapshot snapshot){
         try {
-            URL url = new URL(urlString);
-            connection = (HttpURLConnection) url.openConnection();
-            bis = new BufferedInputStream(connection.getInputStream());
-            bos = new BufferedOutputStream(outputStream);
-            int bytes;
-            while((bytes = bis.read()) != -1){
-                bos.write(bytes);
-            }
-            bis.close();
-            bos.close();
-            return true;
-        } catch (MalformedURLException e) {
+            return HttpCacheInfo.parse(snapshot.getString(DISK_META_INDEX));
+        } catch (IOException e) {
             e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * 解码磁盘缓存中的图片并放入内存缓存，完成后关闭snapshot
+     *
+     * @param cacheInfo 图片的缓存信息，用于保存缩略图，可以为null
+     * @param task 不为null时在结果交给ImageView后再保存缩略图
+     */
+    private Bitmap decodeSnapshot(DiskLruCache.Snapshot snapshot, String url, int imageWidth, int imageHeight,
+                                  Bitmap.Config config, BitmapFactory.Options options, HttpCacheInfo cacheInfo, LoadTask task){
+        Bitmap bitmap = null;
+        ImageInfo info = null;
+        try {
+            try {
+                //使用与图片一起保存的宽高，不必再读取一次文件
+                info = ImageInfo.parse(snapshot.getString(DISK_INFO_INDEX));
+                InputStream is = snapshot.getInputStream(DISK_CACHE_INDEX);
+                if(is instanceof FileInputStream && info == null){
+                    info = mImageResize.readImageInfoFromFile((FileInputStream) is);
+                }
+                bitmap = decodeStream(is, info, imageWidth, imageHeight, config, options);
+            } finally {
+                snapshot.close();
+            }
+            if(bitmap != null) {
+                //先持有引用再放入内存缓存，避免刚放入就被淘汰复用
+                retainBitmap(bitmap);
+                putMemmoryCache(memoryCacheKey(url, imageWidth, imageHeight, config), bitmap);
+                saveDerived(task, url, imageWidth, imageHeight, config, bitmap, info, cacheInfo);
+            }
         } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            if(connection != null){
-                connection.disconnect();
+        }
+        return bitmap;
+    }
+
+    /**
+     * 按所在尺寸档解码，使缓存的图片能满足同一档内的所有请求
+     */
+    private Bitmap decodeStream(InputStream is, ImageInfo info, int imageWidth, int imageHeight, Bitmap.Config config,
+                                BitmapFactory.Options options) throws IOException {
+        options.inPreferredConfig = decodeConfig(config, info);
+        if(is instanceof FileInputStream){
+            FileDescriptor fd = ((FileInputStream) is).getFD();
+            return mImageResize.decodeBitmapFromFileDescriptor(fd, bucketSize(imageWidth), bucketSize(imageHeight), options, info);
+        }
+        if(info != null){
+            //合并存放在segment中的小图，直接从映射的内存中解码
+            return mImageResize.decodeBitmapFromStream(is, bucketSize(imageWidth), bucketSize(imageHeight), options, info);
+        }
+        return mImageResize.decodeBitmapFromStream(is, bucketSize(imageWidth), bucketSize(imageHeight), options);
+    }
+
+    /**
+     * 缩略图缓存的key，与内存缓存的key相同，按尺寸档和Config区分。
+     * RGB_565解码的缩略图已损失颜色精度，不能用于请求ARGB_8888的加载
+     */
+    private String derivedKey(String url, int imageWidth, int imageHeight, Bitmap.Config config){
+        return memoryCacheKey(url, imageWidth, imageHeight, config);
+    }
+
+    /**
+     * 查找由当前版本的原图生成的缩略图，原图已更新时删除旧的缩略图
+     *
+     * @param cacheInfo 磁盘缓存中原图的缓存信息，为null时不使用缩略图
+     */
+    private DiskLruCache.Snapshot findDerived(String url, int imageWidth, int imageHeight, Bitmap.Config config,
+                                              HttpCacheInfo cacheInfo){
+        if(mDerivedCache == null || cacheInfo == null){
+            return null;
+        }
+        String key = derivedKey(url, imageWidth, imageHeight, config);
+        try {
+            DiskLruCache.Snapshot snapshot = mDerivedCache.get(key);
+            if(snapshot == null){
+                return null;
             }
+            if(cacheInfo.version().equals(snapshot.getString(DERIVED_VERSION_INDEX))){
+                return snapshot;
+            }
+            snapshot.close();
+            mDerivedCache.remove(key);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        return false;
+        return null;
     }
 
-    public Bitmap downloadBitmapFromUrl(String url){
+    /**
+     * 解码缩略图并放入内存缓存，完成后关闭snapshot
+     */
+    private Bitmap decodeDerived(DiskLruCache.Snapshot snapshot, String url, int imageWidth, int imageHeight,
+                                 Bitmap.Config config, BitmapFactory.Options options){
         Bitmap bitmap = null;
         try {
-            URL image = new URL(url);
-            HttpURLConnection connection = (HttpURLConnection) image.openConnection();
-            BufferedInputStream bis = new BufferedInputStream(connection.getInputStream());
-            bitmap = BitmapFactory.decodeStream(bis);
-        } catch (MalformedURLException e) {
+            try {
+                ImageInfo info = ImageInfo.parse(snapshot.getString(DERIVED_INFO_INDEX));
+                if(info != null){
+                    bitmap = decodeStream(snapshot.getInputStream(DERIVED_DATA_INDEX), info, imageWidth, imageHeight, config, options);
+                }
+            } finally {
+                snapshot.close();
+            }
+            if(bitmap != null){
+                retainBitmap(bitmap);
+                putMemmoryCache(memoryCacheKey(url, imageWidth, imageHeight, config), bitmap);
+            }
+        } catch (IOException e) {
             e.printStackTrace();
+        }
+        return bitmap;
+    }
+
+    /**
+     * 解码结果比原图小得多时保存为缩略图，下次同一尺寸档的请求只需读取和解码缩略图
+     *
+     * @param source 原图的宽高和类型
+     * @param cacheInfo 原图的缓存信息，为null时原图不在磁盘缓存中，不保存
+     * @param task 不为null时由task在结果交给ImageView后保存，不推迟显示
+     */
+    private void saveDerived(LoadTask task, String url, int imageWidth, int imageHeight, Bitmap.Config config,
+                             Bitmap bitmap, ImageInfo source, HttpCacheInfo cacheInfo){
+        if(mDerivedCache == null || source == null || cacheInfo == null
+                || (long) source.width * source.height < (long) DERIVED_MIN_RATIO * bitmap.getWidth() * bitmap.getHeight()){
+            return ;
+        }
+        if(task != null){
+            task.deriveLater(source.hasAlpha, cacheInfo.version());
+        } else {
+            putDerivedCache(url, imageWidth, imageHeight, config, bitmap, source.hasAlpha, cacheInfo.version());
+        }
+    }
+
+    /**
+     * 不透明的图片编码为JPEG，透明的编码为PNG
+     */
+    private void putDerivedCache(String url, int imageWidth, int imageHeight, Bitmap.Config config, Bitmap bitmap,
+                                 boolean hasAlpha, String version){
+        try {
+            DiskLruCache.Editor editor = mDerivedCache.edit(derivedKey(url, imageWidth, imageHeight, config));
+            if(editor == null){
+                return ;
+            }
+            OutputStream os = editor.newOutputStream(DERIVED_DATA_INDEX);
+            boolean written;
+            try {
+                written = bitmap.compress(hasAlpha ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG,
+                        DERIVED_JPEG_QUALITY, os);
+            } finally {
+                os.close();
+            }
+            if(written){
+                ImageInfo info = new ImageInfo(bitmap.getWidth(), bitmap.getHeight(),
+                        hasAlpha ? ImageHeaderParser.MIME_PNG : ImageHeaderParser.MIME_JPEG, hasAlpha);
+                editor.set(DERIVED_INFO_INDEX, info.toString());
+                editor.set(DERIVED_VERSION_INDEX, version);
+                editor.commit();
+            } else {
+                editor.abort();
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
+    }
+
+    public boolean downloadUrlToStream(String urlString, OutputStream outputStream){
+        return mDownloader.downloadUrlToStream(urlString, outputStream);
+    }
+
+    /**
+     * 设置下载进度回调，在下载线程中调用
+     */
+    public void setProgressListener(ImageDownloader.ProgressListener listener){
+        mDownloader.setProgressListener(listener);
+    }
+
+    public Bitmap downloadBitmapFromUrl(String url){
+        final Bitmap[] bitmap = new Bitmap[1];
+        //经过ImageDownloader下载，读完后连接可以复用
+        mDownloader.downloadUrlToStream(url, new DiscardOutputStream(), new ImageDownloader.StreamReader() {
+            @Override
+            public void read(InputStream is) throws IOException {
+                bitmap[0] = BitmapFactory.decodeStream(new BufferedInputStream(is));
+            }
+        });
+        return bitmap[0];
+    }
+
+    /**
+     * 加入等待显示的结果，还没有安排显示时通知主线程
+     */
+    private void postResult(LoadResult result){
+        synchronized (mResults){
+            mResults.add(result);
+            if(mDeliveryScheduled){
+                return ;
+            }
+            mDeliveryScheduled = true;
+        }
+        mHandler.sendEmptyMessage(MSG_DELIVER);
+    }
+
+    /**
+     * 在主线程中调用，在下一帧开始时显示等待的结果
+     */
+    private void scheduleDelivery(){
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN){
+            if(mFrameCallback == null){
+                mFrameCallback = new Choreographer.FrameCallback() {
+                    @Override
+                    public void doFrame(long frameTimeNanos) {
+                        deliverResults();
+                    }
+                };
+            }
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        } else {
+            mHandler.sendEmptyMessageDelayed(MSG_DELIVER_NEXT_FRAME, DELIVERY_FRAME_INTERVAL);
+        }
+    }
+
+    /**
+     * 显示一批结果，超过每帧的数量或用时限制时剩下的留到下一帧
+     */
+    private void deliverResults(){
+        long start = System.nanoTime();
+        for(int i = 0; i < DELIVERY_MAX_PER_FRAME && System.nanoTime() - start < DELIVERY_FRAME_BUDGET_NANOS; i++){
+            LoadResult result;
+            synchronized (mResults){
+                result = mResults.poll();
+            }
+            if(result == null){
+                break;
+            }
+            String uri = (String) result.imageView.getTag();
+            //预览图只在完整的图片还没显示时显示
+            if(result.uri.equals(uri) && (result.previewOf == null || result.previewOf.isWaiting(result.imageView))){
+                displayBitmap(result.imageView, result.bitmap);
+            }
+            releaseBitmap(result.bitmap);
+        }
+        synchronized (mResults){
+            if(mResults.isEmpty()){
+                mDeliveryScheduled = false;
+                return ;
+            }
+        }
+        scheduleDelivery();
+    }
+
+    private void displayBitmap(ImageView imageView, Bitmap bitmap){
+        releaseCollectedViews();
+        retainBitmap(bitmap);
+        DisplayRef ref = mDisplayedBitmaps.get(imageView);
+        if(ref == null){
+            ref = new DisplayRef(imageView, mDisplayQueue);
+            mDisplayedBitmaps.put(imageView, ref);
+            mDisplayRefs.add(ref);
+        }
+        Bitmap old = ref.bitmap;
+        ref.bitmap = bitmap;
+        imageView.setImageBitmap(bitmap);
+        if(old != null){
+            releaseBitmap(old);
+        }
+    }
+
+    /**
+     * 释放已被回收的ImageView显示的Bitmap，如Activity销毁后没有取消的ImageView。在主线程中调用
+     */
+    private void releaseCollectedViews(){
+        Reference<? extends ImageView> ref;
+        while((ref = mDisplayQueue.poll()) != null){
+            DisplayRef displayRef = (DisplayRef) ref;
+            mDisplayRefs.remove(displayRef);
+            releaseBitmap(displayRef.bitmap);
+            displayRef.bitmap = null;
+        }
+    }
+
+    private void retainBitmap(Bitmap bitmap){
+        synchronized (mBitmapRefs){
+            Integer count = mBitmapRefs.get(bitmap);
+            mBitmapRefs.put(bitmap, count == null ? 1 : count + 1);
+        }
+    }
+
+    private void releaseBitmap(Bitmap bitmap){
+        if(bitmap == null){
+            return ;
+        }
+        synchronized (mBitmapRefs){
+            Integer count = mBitmapRefs.get(bitmap);
+            if(count == null){
+                return ;
+            }
+            if(count > 1){
+                mBitmapRefs.put(bitmap, count - 1);
+                return ;
+            }
+            mBitmapRefs.remove(bitmap);
+            if(mEvictedBitmaps.remove(bitmap)){
+                mBitmapPool.put(bitmap);
+            }
+        }
+    }
+
+    private Bitmap pinBitmap(Bitmap bitmap){
+        if(bitmap != null){
+            synchronized (mBitmapRefs){
+                mPinnedBitmaps.add(bitmap);
+            }
+        }
         return bitmap;
     }
 
+    /**
+     * 将内部加载得到的Bitmap交给公开方法的调用者
+     */
+    private Bitmap handOverBitmap(Bitmap bitmap){
+        pinBitmap(bitmap);
+        releaseBitmap(bitmap);
+        return bitmap;
+    }
+
+    /**
+     * 被内存缓存移除的Bitmap，没有被显示时放入BitmapPool供之后的解码复用
+     */
+    private void recycleBitmap(Bitmap bitmap){
+        synchronized (mBitmapRefs){
+            if(mPinnedBitmaps.contains(bitmap)){
+                return ;
+            }
+            if(mBitmapRefs.containsKey(bitmap)){
+                mEvictedBitmaps.add(bitmap);
+            } else {
+                mBitmapPool.put(bitmap);
+            }
+        }
+    }
+
+    /**
+     * 内存缓存的key，包含url、所需尺寸所在的档位和自动选择的Config
+     */
+    public String memoryCacheKey(String url, int imageWidth, int imageHeight){
+        return memoryCacheKey(url, imageWidth, imageHeight, null);
+    }
+
+    /**
+     * 不同Config解码的图片分别缓存
+     *
+     * @param config 请求的Config，null表示自动选择
+     */
+    public String memoryCacheKey(String url, int imageWidth, int imageHeight, Bitmap.Config config){
+        return hashKey(url) + "_" + bucketSize(imageWidth) + "x" + bucketSize(imageHeight) + configSuffix(config);
+    }
+
+    private static String configSuffix(Bitmap.Config config){
+        return "_" + (config != null ? config.name() : "AUTO");
+    }
+
+    /**
+     * 解码时使用的Config：指定了config时使用config，否则不透明的图片使用RGB_565，内存减半
+     */
+    static Bitmap.Config decodeConfig(Bitmap.Config config, ImageInfo info){
+        if(config != null){
+            return config;
+        }
+        return info != null && !info.hasAlpha ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * 将尺寸向上取整到档位，每个2的幂区间分为4档
+     */
+    static int bucketSize(int size){
+        if(size <= 0){
+            return size;
+        }
+        int step = Math.max(1, Integer.highestOneBit(size) / 4);
+        return (size + step - 1) / step * step;
+    }
+
+    /**
+     * key中url与Config之间的尺寸
+     */
+    static int[] parseVariantSize(String key){
+        //Config的名称中也有'_'，如RGB_565，尺寸在第一个与第二个'_'之间
+        int start = key.indexOf('_');
+        int end = start < 0 ? -1 : key.indexOf('_', start + 1);
+        if(end < 0){
+            return null;
+        }
+        String size = key.substring(start + 1, end);
+        int index = size.indexOf('x');
+        if(index < 0){
+            return null;
+        }
+        try {
+            return new int[]{Integer.parseInt(size.substring(0, index)), Integer.parseInt(size.substring(index + 1))};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void addMemoryVariant(String key){
+        int index = key.indexOf('_');
+        if(index < 0 || parseVariantSize(key) == null){
+            return ;
+        }
+        synchronized (mMemoryVariants){
+            String urlKey = key.substring(0, index);
+            Set<String> variants = mMemoryVariants.get(urlKey);
+            if(variants == null){
+                variants = new HashSet<String>();
+                mMemoryVariants.put(urlKey, variants);
+            }
+            variants.add(key);
+        }
+    }
+
+    private void removeMemoryVariant(String key){
+        int index = key.indexOf('_');
+        if(index < 0){
+            return ;
+        }
+        synchronized (mMemoryVariants){
+            String urlKey = key.substring(0, index);
+            Set<String> variants = mMemoryVariants.get(urlKey);
+            if(variants != null){
+                variants.remove(key);
+                if(variants.isEmpty()){
+                    mMemoryVariants.remove(urlKey);
+                }
+            }
+        }
+    }
+
     public String hashKey(String uri){
         String key = null;
         try {
@@ -282,14 +1558,336 @@ public class ImageLoader {
         StatFs statFs = new StatFs(file.getPath());
         return statFs.getBlockSize() * statFs.getAvailableBlocks();
     }
+    /**
+     * 一次图片加载，所有请求同一张图片的ImageView共享下载和解码的结果。
+     * 先在磁盘线程池中查找缓存，命中后转到解码线程池，未命中则转到下载线程池
+     */
+    class LoadTask implements Runnable{
+        static final int STAGE_DISK = 0;
+        static final int STAGE_DECODE = 1;
+        static final int STAGE_NETWORK = 2;
+
+        final String key;
+        final String url;
+        final int imageWidth;
+        final int imageHeight;
+        //请求的Config，null表示自动选择
+        final Bitmap.Config config;
+        final List<ImageView> targets = new ArrayList<ImageView>();
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        //由prefetch创建的任务
+        final boolean prefetch;
+        //为false时只预加载到磁盘缓存，有ImageView等待时改为true。在持有mLoadingTasks锁时修改
+        volatile boolean decode;
+        //下载时先显示预览图，在持有mLoadingTasks锁时修改
+        volatile boolean preview;
+        //在队列中时只能通过reschedule修改，否则会破坏PriorityBlockingQueue的顺序
+        volatile int priority;
+        volatile long sequence;
+        private int stage = STAGE_DISK;
+        //磁盘查找命中后等待解码的缓存
+        private DiskLruCache.Snapshot snapshot;
+        //同一尺寸档的缩略图，有时代替snapshot解码
+        private DiskLruCache.Snapshot derived;
+        //命中的原图的缓存信息
+        private HttpCacheInfo cacheInfo;
+        //解码完成后需要保存缩略图时不为null
+        private String deriveVersion;
+        private boolean deriveAlpha;
+        //磁盘缓存中的图片已过期时，用于向服务器确认是否修改
+        private HttpCacheInfo staleInfo;
+        private Thread runner;
+        private boolean cancelled;
+
+        public LoadTask(String key, String url, int imageWidth, int imageHeight, Bitmap.Config config, int priority,
+                        boolean prefetch, boolean decode){
+            this.key = key;
+            this.url = url;
+            this.imageWidth = imageWidth;
+            this.imageHeight = imageHeight;
+            this.config = config;
+            this.priority = priority;
+            this.prefetch = prefetch;
+            this.decode = decode;
+            this.sequence = mSequence.getAndIncrement();
+        }
+
+        /**
+         * 当前阶段所在的线程池，在持有mLoadingTasks锁时调用
+         */
+        ThreadPoolExecutor executor(){
+            if(stage == STAGE_DECODE){
+                return mDecodeExecutor;
+            }
+            return stage == STAGE_NETWORK ? mNetworkExecutor : mDiskExecutor;
+        }
+
+        /**
+         * 以新的优先级重新排队，并视为最新的请求。在持有mLoadingTasks锁时调用
+         */
+        void reschedule(int newPriority){
+            if(runner != null || cancelled){
+                return ;
+            }
+            if(mPendingTasks.contains(this) || mDeferredTasks.contains(this)){
+                priority = newPriority;
+                sequence = mSequence.getAndIncrement();
+            } else if(executor().remove(this)){
+                priority = newPriority;
+                sequence = mSequence.getAndIncrement();
+                executor().execute(this);
+            }
+        }
+
+        /**
+         * 把预览图交给当前等待的ImageView，在下载线程中调用
+         */
+        void deliverPreview(Bitmap bitmap){
+            List<ImageView> imageViews;
+            synchronized (mLoadingTasks){
+                if(cancelled){
+                    return ;
+                }
+                imageViews = new ArrayList<ImageView>(targets);
+            }
+            bitmap.prepareToDraw();
+            for(ImageView imageView : imageViews){
+                retainBitmap(bitmap);
+                postResult(new LoadResult(imageView, url, bitmap, this));
+            }
+        }
+
+        /**
+         * imageView是否仍在等待本任务的结果，在主线程中调用
+         */
+        boolean isWaiting(ImageView imageView){
+            synchronized (mLoadingTasks){
+                return mTargetTasks.get(imageView) == this;
+            }
+        }
+
+        void addTarget(ImageView imageView){
+            if(!targets.contains(imageView)){
+                targets.add(imageView);
+            }
+        }
+
+        /**
+         * 在持有mLoadingTasks锁时调用
+         */
+        void cancel(){
+            cancelled = true;
+            if(runner != null){
+                runner.interrupt();
+                options.requestCancelDecode();
+            } else if(!mPendingTasks.remove(this) && !mDeferredTasks.remove(this)){
+                executor().remove(this);
+                closeSnapshot();
+            }
+        }
+
+        private void closeSnapshot(){
+            if(snapshot != null){
+                snapshot.close();
+                snapshot = null;
+            }
+            if(derived != null){
+                derived.close();
+                derived = null;
+            }
+        }
+
+        /**
+         * 结果交给ImageView后再把解码的图片保存为缩略图
+         */
+        void deriveLater(boolean hasAlpha, String version){
+            deriveAlpha = hasAlpha;
+            deriveVersion = version;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mLoadingTasks){
+                if(cancelled){
+                    return ;
+                }
+                runner = Thread.currentThread();
+            }
+            Bitmap bitmap = null;
+            int next = -1;
+            boolean decoding = decode;
+            try {
+                if(!decoding){
+                    //只预加载到磁盘：已在磁盘缓存中则结束，否则下载
+                    if(stage == STAGE_DISK){
+                        snapshot = findInDiskCache();
+                        next = snapshot != null ? -1 : STAGE_NETWORK;
+                    } else {
+                        prefetchToDiskCache(url);
+                    }
+                } else if(stage == STAGE_DISK){
+                    bitmap = loadBitmapFromLargerVariant(url, imageWidth, imageHeight, config);
+                    if(bitmap == null){
+                        //预加载不算作访问
+                        if(!prefetch){
+                            mAdmissionSketch.increment(hashKey(url));
+                        }
+                        snapshot = findInDiskCache();
+                        staleInfo = checkStale();
+                        if(snapshot != null){
+                            derived = findDerived(url, imageWidth, imageHeight, config, cacheInfo);
+                        }
+                        next = snapshot != null ? STAGE_DECODE : STAGE_NETWORK;
+                    }
+                } else if(stage == STAGE_DECODE){
+                    if(derived != null){
+                        DiskLruCache.Snapshot thumbnail = derived;
+                        derived = null;
+                        bitmap = decodeDerived(thumbnail, url, imageWidth, imageHeight, config, options);
+                    }
+                    DiskLruCache.Snapshot hit = snapshot;
+                    snapshot = null;
+                    if(bitmap != null){
+                        hit.close();
+                    } else {
+                        //没有缩略图或缩略图无法解码时解码原图
+                        bitmap = decodeSnapshot(hit, url, imageWidth, imageHeight, config, options, cacheInfo, this);
+                    }
+                    if(bitmap == null){
+                        //缓存的文件无法解码，重新下载
+                        next = STAGE_NETWORK;
+                    }
+                } else {
+                    bitmap = loadBitmapFromHttp(url, imageWidth, imageHeight, config, options, staleInfo, this);
+                    if(bitmap == null && !hasDisCache && !Thread.currentThread().isInterrupted()){
+                        bitmap = downloadBitmapFromUrl(url);
+                    }
+                }
+            } finally {
+                finish(bitmap, next, decoding);
+            }
+        }
+
+        /**
+         * 转到下一阶段，或者结束任务并把结果交给等待的ImageView
+         *
+         * @param next 下一阶段，小于0表示已经结束
+         * @param decoding 本阶段开始时是否需要解码
+         */
+        private void finish(Bitmap bitmap, int next, boolean decoding){
+            List<ImageView> imageViews;
+            synchronized (mLoadingTasks){
+                runner = null;
+                //清除取消时设置的中断状态，避免影响线程池中的下一个任务
+                Thread.interrupted();
+                if(!decoding && decode && next < 0){
+                    //预加载到磁盘期间有ImageView开始等待，从磁盘缓存解码
+                    closeSnapshot();
+                    next = STAGE_DISK;
+                }
+                if(next >= 0 && !cancelled){
+                    //转到下一阶段的线程池，仍按原来的优先级和顺序排队
+                    stage = next;
+                    if(stage == STAGE_NETWORK && mScrollState == SCROLL_FAST){
+                        //快速滑过的图片大多会被取消，等滑动变慢后再下载
+                        mDeferredTasks.add(this);
+                    } else {
+                        executor().execute(this);
+                    }
+                    return ;
+                }
+                closeSnapshot();
+                if(!cancelled){
+                    mLoadingTasks.remove(key);
+                    for(ImageView imageView : targets){
+                        mTargetTasks.remove(imageView);
+                    }
+                }
+                imageViews = new ArrayList<ImageView>(targets);
+            }
+            if(bitmap != null && !cancelled && !imageViews.isEmpty()){
+                //在工作线程中提前准备绘制，减少主线程第一次绘制的耗时
+                bitmap.prepareToDraw();
+                for(ImageView imageView : imageViews){
+                    retainBitmap(bitmap);
+                    postResult(new LoadResult(imageView, url, bitmap));
+                }
+            }
+            if(bitmap != null && deriveVersion != null && !cancelled){
+                putDerivedCache(url, imageWidth, imageHeight, config, bitmap, deriveAlpha, deriveVersion);
+            }
+            deriveVersion = null;
+            releaseBitmap(bitmap);
+        }
+
+        /**
+         * 命中的图片已过期且可以发送条件请求时，关闭snapshot并返回其缓存信息
+         */
+        private HttpCacheInfo checkStale(){
+            if(snapshot == null){
+                return null;
+            }
+            HttpCacheInfo info = readCacheInfo(snapshot);
+            cacheInfo = info;
+            if(info == null || !info.isStale(System.currentTimeMillis()) || !info.hasValidators()){
+                return null;
+            }
+            closeSnapshot();
+            return info;
+        }
+
+        private DiskLruCache.Snapshot findInDiskCache(){
+            if(!hasDisCache){
+                return null;
+            }
+            try {
+                return mDiskCache.get(hashKey(url));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 不写入磁盘缓存时代替缓存文件，丢弃下载的数据
+     */
+    static class DiscardOutputStream extends OutputStream{
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    /**
+     * ImageView与它显示的Bitmap，ImageView被回收后仍可据此释放Bitmap的引用
+     */
+    static class DisplayRef extends WeakReference<ImageView>{
+        Bitmap bitmap;
+
+        DisplayRef(ImageView imageView, ReferenceQueue<ImageView> queue){
+            super(imageView, queue);
+        }
+    }
+
     class LoadResult{
         ImageView imageView;
         String uri;
         Bitmap bitmap;
+        //预览图所属的任务，完整的图片为null
+        LoadTask previewOf;
         public LoadResult(ImageView imageView, String uri, Bitmap bitmap){
+            this(imageView, uri, bitmap, null);
+        }
+
+        public LoadResult(ImageView imageView, String uri, Bitmap bitmap, LoadTask previewOf){
             this.imageView = imageView;
             this.uri = uri;
             this.bitmap = bitmap;
+            this.previewOf = previewOf;
         }
     }
 }
@@ -3,8 +3,12 @@ package com.ailsa.imageloader.imageloader;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Build;
 
+import java.io.BufferedInputStream;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 
 /**
@@ -13,6 +17,21 @@ import java.io.InputStream;
 
 public class ImageResize {
 
+    //读取图片宽高时最多缓存的字节数，超出后流无法重置；不能小于文件头解析读取的长度
+    private static final int MARK_LIMIT = ImageHeaderParser.MAX_HEADER_BYTES;
+
+    private BitmapPool mBitmapPool;
+
+    public ImageResize(){
+    }
+
+    /**
+     * @param bitmapPool 解码时从中取出可复用的Bitmap
+     */
+    public ImageResize(BitmapPool bitmapPool){
+        mBitmapPool = bitmapPool;
+    }
+
     public Bitmap decodeBitmapFromResource(Resources res, int resId, int imageWidth, int imageHeight) {
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
@@ -20,29 +39,180 @@ public class ImageResize {
         int size = calculateInSampleSize(options, imageWidth, imageHeight);
         options.inSampleSize = size;
         options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeResource(res, resId, options);
+        addInBitmapOptions(options);
+        try {
+            return BitmapFactory.decodeResource(res, resId, options);
+        } catch (IllegalArgumentException e) {
+            //inBitmap不满足复用条件
+            options.inBitmap = null;
+            return BitmapFactory.decodeResource(res, resId, options);
+        }
     }
 
     public Bitmap decodeBitmapFromFileDescriptor(FileDescriptor fd, int imageWidth, int imageHeight){
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFileDescriptor(fd, null, options);
+        return decodeBitmapFromFileDescriptor(fd, imageWidth, imageHeight, new BitmapFactory.Options());
+    }
+
+    /**
+     * 由调用者提供options，可通过{@link BitmapFactory.Options#requestCancelDecode()}取消解码
+     */
+    public Bitmap decodeBitmapFromFileDescriptor(FileDescriptor fd, int imageWidth, int imageHeight, BitmapFactory.Options options){
+        return decodeBitmapFromFileDescriptor(fd, imageWidth, imageHeight, options, null);
+    }
+
+    /**
+     * @param info 已知的图片宽高，不为null时不必再读取一次文件获取宽高
+     */
+    public Bitmap decodeBitmapFromFileDescriptor(FileDescriptor fd, int imageWidth, int imageHeight, BitmapFactory.Options options, ImageInfo info){
+        if(info != null){
+            setImageInfo(options, info);
+        } else {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(fd, null, options);
+        }
         int size = calculateInSampleSize(options, imageWidth, imageHeight);
         options.inSampleSize = size;
         options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeFileDescriptor(fd, null, options);
+        addInBitmapOptions(options);
+        try {
+            return BitmapFactory.decodeFileDescriptor(fd, null, options);
+        } catch (IllegalArgumentException e) {
+            options.inBitmap = null;
+            return BitmapFactory.decodeFileDescriptor(fd, null, options);
+        }
     }
 
     public Bitmap decodeBitmapFromStream(InputStream is, int imageWidth, int imageHeight){
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeStream(is, null, options);
+        return decodeBitmapFromStream(is, imageWidth, imageHeight, new BitmapFactory.Options());
+    }
+
+    /**
+     * 流只能读取一次，先读取文件头得到宽高，之后reset重新读取进行解码
+     */
+    public Bitmap decodeBitmapFromStream(InputStream is, int imageWidth, int imageHeight, BitmapFactory.Options options){
+        if(!is.markSupported()){
+            is = new BufferedInputStream(is);
+        }
+        ImageInfo info;
+        try {
+            info = readImageInfo(is);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        if(info == null){
+            return null;
+        }
+        return decodeBitmapFromStream(is, imageWidth, imageHeight, options, info);
+    }
+
+    /**
+     * 用已知的宽高计算inSampleSize，只解码一次。
+     * inBitmap不能复用时，is支持mark/reset且读取的内容没有超出mark的范围则不复用重新解码，否则返回null
+     */
+    public Bitmap decodeBitmapFromStream(InputStream is, int imageWidth, int imageHeight, BitmapFactory.Options options, ImageInfo info){
+        setImageInfo(options, info);
         int size = calculateInSampleSize(options, imageWidth, imageHeight);
         options.inSampleSize = size;
         options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeStream(is, null, options);
+        addInBitmapOptions(options);
+        boolean resettable = options.inBitmap != null && is.markSupported();
+        if(resettable){
+            is.mark(MARK_LIMIT);
+        }
+        try {
+            return BitmapFactory.decodeStream(is, null, options);
+        } catch (IllegalArgumentException e) {
+            options.inBitmap = null;
+            if(!resettable){
+                return null;
+            }
+            try {
+                is.reset();
+            } catch (IOException ioe) {
+                //已读取的内容超出mark的范围，由调用者从磁盘缓存重新解码
+                return null;
+            }
+            return BitmapFactory.decodeStream(is, null, options);
+        }
+    }
+
+    /**
+     * 读取is开头的文件头得到图片的宽高，之后将is重置到开头。is需支持mark/reset。
+     * 无法识别的格式由BitmapFactory读取宽高，都失败时返回null。
+     * BitmapFactory读取的内容超出mark的范围时is无法重置，也返回null，此时is不能再用于解码
+     */
+    public ImageInfo readImageInfo(InputStream is) throws IOException {
+        is.mark(MARK_LIMIT);
+        ImageInfo info = ImageHeaderParser.parse(is);
+        if(info == null){
+            is.reset();
+            is.mark(MARK_LIMIT);
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(is, null, options);
+            if(options.outWidth > 0 && options.outHeight > 0){
+                String mimeType = options.outMimeType != null ? options.outMimeType : "unknown";
+                info = new ImageInfo(options.outWidth, options.outHeight, mimeType);
+            }
+        }
+        try {
+            is.reset();
+        } catch (IOException e) {
+            //由调用者下载完成后从磁盘缓存解码
+            return null;
+        }
+        return info;
     }
 
+    /**
+     * 读取文件开头的文件头，之后恢复文件的读取位置，不会关闭is
+     */
+    public ImageInfo readImageInfoFromFile(FileInputStream is){
+        try {
+            long position = is.getChannel().position();
+            try {
+                return ImageHeaderParser.parse(new BufferedInputStream(is, 1024));
+            } finally {
+                is.getChannel().position(position);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void setImageInfo(BitmapFactory.Options options, ImageInfo info){
+        options.outWidth = info.width;
+        options.outHeight = info.height;
+        options.outMimeType = info.mimeType;
+    }
+
+    /**
+     * 解码出的Bitmap设为可变的，以便之后放入BitmapPool复用；并从BitmapPool中取出合适的Bitmap作为inBitmap。
+     * 需在inJustDecodeBounds得到outWidth、outHeight并计算出inSampleSize后调用
+     */
+    private void addInBitmapOptions(BitmapFactory.Options options){
+        options.inMutable = true;
+        options.inBitmap = null;
+        if(mBitmapPool == null || options.outWidth <= 0 || options.outHeight <= 0 || !canUseForInBitmap(options.outMimeType)){
+            return ;
+        }
+        int sampleSize = Math.max(1, options.inSampleSize);
+        int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        int height = (options.outHeight + sampleSize - 1) / sampleSize;
+        options.inBitmap = mBitmapPool.get(width, height, options.inPreferredConfig, sampleSize);
+    }
+
+    /**
+     * KITKAT之前的解码器只能把JPEG和PNG解码到inBitmap中，其他格式会抛出IllegalArgumentException
+     */
+    private static boolean canUseForInBitmap(String mimeType){
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT){
+            return true;
+        }
+        return ImageHeaderParser.MIME_JPEG.equals(mimeType) || ImageHeaderParser.MIME_PNG.equals(mimeType);
+    }
 
     public int calculateInSampleSize(BitmapFactory.Options options, int imageWidth, int imageHeight) {
         int width = options.outWidth;
@@ -0,0 +1,142 @@
+package com.ailsa.imageloader.imageloader;
+
+import android.support.v4.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 基于LruCache的最近最少使用策略，滑动一遍长列表就会把常用的图片全部挤出。
+ * 修改条目的操作都在同一个锁中进行，entryRemoved在释放锁后调用
+ */
+
+public class LruMemoryCache<K, V> extends MemoryCache<K, V> {
+
+    private volatile LruCache<K, V> mCache;
+    //缓存中所有的key，与mCache在同一个锁中修改，containsKey不必复制整个LruCache
+    private final HashSet<K> mKeys = new HashSet<K>();
+    //持有锁时被移除的条目，释放锁后再回调entryRemoved
+    private final List<Removal<K, V>> mRemovals = new ArrayList<Removal<K, V>>();
+
+    public LruMemoryCache(int maxSize){
+        mCache = newCache(maxSize);
+    }
+
+    private LruCache<K, V> newCache(int maxSize){
+        return new LruCache<K, V>(maxSize){
+            @Override
+            protected int sizeOf(K key, V value) {
+                return LruMemoryCache.this.sizeOf(key, value);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+                //在LruMemoryCache的锁中调用
+                if(newValue == null){
+                    mKeys.remove(key);
+                }
+                mRemovals.add(new Removal<K, V>(evicted, key, oldValue, newValue));
+            }
+        };
+    }
+
+    /**
+     * support库的LruCache不能修改容量，换成新容量的LruCache后按从旧到新的顺序放回原有条目，
+     * 放不下的最久未使用的条目在放回时被淘汰。放回时持有锁，其间的put不会丢失
+     */
+    @Override
+    public void resize(int maxSize) {
+        LruCache<K, V> cache = newCache(maxSize);
+        synchronized (this){
+            Map<K, V> entries = mCache.snapshot();
+            for(Map.Entry<K, V> entry : entries.entrySet()){
+                cache.put(entry.getKey(), entry.getValue());
+            }
+            mCache = cache;
+        }
+        notifyRemoved();
+    }
+
+    @Override
+    public V get(K key) {
+        return mCache.get(key);
+    }
+
+    /**
+     * LruCache.get会把条目移到最近使用的位置，在mKeys中判断
+     */
+    @Override
+    public synchronized boolean containsKey(K key) {
+        return mKeys.contains(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        V previous;
+        synchronized (this){
+            //先加入，放入后立即被淘汰时由entryRemoved移除
+            mKeys.add(key);
+            previous = mCache.put(key, value);
+        }
+        notifyRemoved();
+        return previous;
+    }
+
+    @Override
+    public V remove(K key) {
+        V previous;
+        synchronized (this){
+            previous = mCache.remove(key);
+        }
+        notifyRemoved();
+        return previous;
+    }
+
+    @Override
+    public void trimToSize(int maxSize) {
+        synchronized (this){
+            mCache.trimToSize(maxSize);
+        }
+        notifyRemoved();
+    }
+
+    private void notifyRemoved(){
+        List<Removal<K, V>> removals;
+        synchronized (this){
+            if(mRemovals.isEmpty()){
+                return ;
+            }
+            removals = new ArrayList<Removal<K, V>>(mRemovals);
+            mRemovals.clear();
+        }
+        for(Removal<K, V> removal : removals){
+            entryRemoved(removal.evicted, removal.key, removal.oldValue, removal.newValue);
+        }
+    }
+
+    @Override
+    public int size() {
+        return mCache.size();
+    }
+
+    @Override
+    public int maxSize() {
+        return mCache.maxSize();
+    }
+
+    private static class Removal<K, V> {
+        final boolean evicted;
+        final K key;
+        final V oldValue;
+        final V newValue;
+
+        Removal(boolean evicted, K key, V oldValue, V newValue){
+            this.evicted = evicted;
+            this.key = key;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+    }
+}
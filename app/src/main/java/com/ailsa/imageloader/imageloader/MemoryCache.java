@@ -0,0 +1,62 @@
+package com.ailsa.imageloader.imageloader;
+
+/**
+ * 内存缓存的淘汰策略，用法与LruCache相同：重写sizeOf返回条目的大小，
+ * 重写entryRemoved得知条目被淘汰或替换。entryRemoved在锁外调用。
+ */
+
+public abstract class MemoryCache<K, V> {
+
+    public abstract V get(K key);
+
+    /**
+     * 只判断key是否在缓存中，与get不同，不计入访问频率，也不改变淘汰顺序
+     */
+    public abstract boolean containsKey(K key);
+
+    /**
+     * @return key原来对应的值，没有则返回null
+     */
+    public abstract V put(K key, V value);
+
+    /**
+     * 放入预加载的条目。预加载的条目没有经过get，容量不足时不应因访问频率为0被立即淘汰
+     */
+    public V putPrefetched(K key, V value){
+        return put(key, value);
+    }
+
+    public abstract V remove(K key);
+
+    /**
+     * 淘汰条目直到总大小不超过maxSize，-1表示清空
+     */
+    public abstract void trimToSize(int maxSize);
+
+    /**
+     * 修改最大容量，缩小时立即淘汰多出的条目
+     */
+    public abstract void resize(int maxSize);
+
+    public void evictAll(){
+        trimToSize(-1);
+    }
+
+    /**
+     * 当前所有条目sizeOf的总和
+     */
+    public abstract int size();
+
+    public abstract int maxSize();
+
+    protected int sizeOf(K key, V value){
+        return 1;
+    }
+
+    /**
+     * @param evicted 为true表示因容量不足被淘汰，false表示被remove或put替换
+     * @param newValue 被put替换时的新值，否则为null
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue){
+    }
+}
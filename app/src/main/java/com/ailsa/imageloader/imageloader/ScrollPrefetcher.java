@@ -0,0 +1,139 @@
+package com.ailsa.imageloader.imageloader;
+
+import android.os.SystemClock;
+import android.widget.AbsListView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 根据列表的可见区域和滑动方向预加载：滑动方向上的下一屏解码到内存缓存，再下一屏只下载到磁盘缓存。
+ * 同时根据滑动速度设置ImageLoader的滑动状态，快速滑动时暂缓下载。
+ * 在OnScrollListener中调用{@link #onScrollStateChanged(int)}和{@link #onScroll(int, int)}
+ */
+
+public class ScrollPrefetcher {
+
+    //每秒滑过超过该屏数时视为快速滑动
+    private static final float FAST_SCREENS_PER_SECOND = 2f;
+
+    /**
+     * 列表中每一项的图片地址，通常由Adapter实现
+     */
+    public interface UrlSource {
+        int getCount();
+
+        /**
+         * @return position处的图片地址，没有图片时返回null
+         */
+        String getUrl(int position);
+    }
+
+    private final ImageLoader mImageLoader;
+    private final UrlSource mSource;
+    private final int mImageWidth;
+    private final int mImageHeight;
+    private int mFirstVisible = -1;
+    private int mVisibleCount;
+    //1为向下滑动，-1为向上
+    private int mDirection = 1;
+    private int mListState = AbsListView.OnScrollListener.SCROLL_STATE_IDLE;
+    private int mScrollState = ImageLoader.SCROLL_IDLE;
+    //每秒滑过的项数
+    private float mVelocity;
+    private long mLastMoveTime;
+
+    public ScrollPrefetcher(ImageLoader imageLoader, UrlSource source, int imageWidth, int imageHeight){
+        mImageLoader = imageLoader;
+        mSource = source;
+        mImageWidth = imageWidth;
+        mImageHeight = imageHeight;
+    }
+
+    /**
+     * @param scrollState AbsListView.OnScrollListener中的SCROLL_STATE_*
+     */
+    public void onScrollStateChanged(int scrollState){
+        mListState = scrollState;
+        if(scrollState == AbsListView.OnScrollListener.SCROLL_STATE_IDLE){
+            mVelocity = 0;
+        }
+        updateScrollState();
+        if(scrollState == AbsListView.OnScrollListener.SCROLL_STATE_IDLE && mFirstVisible >= 0){
+            prefetch();
+        }
+    }
+
+    public void onScroll(int firstVisibleItem, int visibleItemCount){
+        long now = SystemClock.uptimeMillis();
+        if(mFirstVisible >= 0 && firstVisibleItem != mFirstVisible){
+            long elapsed = Math.max(1, now - mLastMoveTime);
+            mVelocity = Math.abs(firstVisibleItem - mFirstVisible) * 1000f / elapsed;
+            mLastMoveTime = now;
+        } else if(now > mLastMoveTime){
+            //一段时间没有新的项滑入，说明已经慢下来
+            mVelocity = Math.min(mVelocity, 1000f / (now - mLastMoveTime));
+        }
+        if(mFirstVisible < 0){
+            mLastMoveTime = now;
+        }
+        if(visibleItemCount <= 0 || (firstVisibleItem == mFirstVisible && visibleItemCount == mVisibleCount)){
+            updateScrollState();
+            return ;
+        }
+        int direction = mDirection;
+        if(mFirstVisible >= 0 && firstVisibleItem != mFirstVisible){
+            direction = firstVisibleItem > mFirstVisible ? 1 : -1;
+        }
+        if(direction != mDirection){
+            //反向滑动后原来方向上的预加载已经用不到
+            mImageLoader.cancelPrefetch();
+        }
+        mFirstVisible = firstVisibleItem;
+        mVisibleCount = visibleItemCount;
+        mDirection = direction;
+        updateScrollState();
+        if(mScrollState != ImageLoader.SCROLL_FAST){
+            prefetch();
+        }
+    }
+
+    private void updateScrollState(){
+        int state;
+        if(mListState == AbsListView.OnScrollListener.SCROLL_STATE_IDLE){
+            state = ImageLoader.SCROLL_IDLE;
+        } else if(mVisibleCount > 0 && mVelocity > mVisibleCount * FAST_SCREENS_PER_SECOND){
+            state = ImageLoader.SCROLL_FAST;
+        } else {
+            state = ImageLoader.SCROLL_SLOW;
+        }
+        if(state != mScrollState){
+            mScrollState = state;
+            mImageLoader.setScrollState(state);
+        }
+    }
+
+    private void prefetch(){
+        int start = mDirection > 0 ? mFirstVisible + mVisibleCount : mFirstVisible - 1;
+        //优先级相同时后提交的先执行，因此先提交较远的
+        mImageLoader.prefetch(collect(start + mDirection * mVisibleCount, mVisibleCount, mDirection),
+                mImageWidth, mImageHeight, ImageLoader.PREFETCH_DISK);
+        mImageLoader.prefetch(collect(start, mVisibleCount, mDirection), mImageWidth, mImageHeight,
+                ImageLoader.PREFETCH_MEMORY);
+    }
+
+    /**
+     * 从start开始沿滑动方向取count项的图片地址，离可见区域远的在前
+     */
+    private List<String> collect(int start, int count, int direction){
+        List<String> urls = new ArrayList<String>(count);
+        int total = mSource.getCount();
+        for(int i = 0, position = start; i < count && position >= 0 && position < total; i++, position += direction){
+            String url = mSource.getUrl(position);
+            if(url != null){
+                urls.add(0, url);
+            }
+        }
+        return urls;
+    }
+}
@@ -0,0 +1,195 @@
+package com.ailsa.imageloader.imageloader;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 将key按哈希前缀分散到多个DiskLruCache中，每个分片有独立的锁、journal和容量，
+ * 多个下载线程同时写入时不会争用同一把锁，每个journal也更小，打开更快。
+ * 分片保存在"分片数.序号"子目录中，分片数改变后旧的分片会被删除。
+ */
+
+public class ShardedDiskCache {
+
+    private final File mDirectory;
+    private final long mMaxSize;
+    private final DiskLruCache[] mShards;
+
+    private ShardedDiskCache(File directory, long maxSize, DiskLruCache[] shards){
+        mDirectory = directory;
+        mMaxSize = maxSize;
+        mShards = shards;
+    }
+
+    /**
+     * @param shardCount 分片数，每个分片的容量为maxSize / shardCount
+     */
+    public static ShardedDiskCache open(File directory, int appVersion, int valueCount, long maxSize, int shardCount)
+            throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, shardCount, 0);
+    }
+
+    /**
+     * @param packThreshold 总大小不超过该字节数的条目合并存放在分片的segment文件中，见DiskLruCache
+     */
+    public static ShardedDiskCache open(File directory, int appVersion, int valueCount, long maxSize, int shardCount,
+            int packThreshold) throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, shardCount, packThreshold,
+                DiskLruCache.DURABILITY_GROUP_COMMIT);
+    }
+
+    /**
+     * @param durability 各分片journal的写入方式，{@link DiskLruCache#DURABILITY_SYNC}或
+     *                   {@link DiskLruCache#DURABILITY_GROUP_COMMIT}
+     */
+    public static ShardedDiskCache open(File directory, int appVersion, int valueCount, long maxSize, int shardCount,
+            int packThreshold, int durability) throws IOException {
+        if(shardCount <= 0){
+            throw new IllegalArgumentException("shardCount <= 0");
+        }
+        directory.mkdirs();
+        deleteStaleFiles(directory, shardCount);
+        DiskLruCache[] shards = new DiskLruCache[shardCount];
+        try {
+            for(int i = 0; i < shardCount; i++){
+                shards[i] = DiskLruCache.open(new File(directory, shardName(shardCount, i)),
+                        appVersion, valueCount, Math.max(1, maxSize / shardCount),
+                        durability, packThreshold);
+            }
+        } catch (IOException e) {
+            for(DiskLruCache shard : shards){
+                if(shard != null){
+                    shard.close();
+                }
+            }
+            throw e;
+        }
+        return new ShardedDiskCache(directory, maxSize, shards);
+    }
+
+    /**
+     * 删除不属于当前分片布局的文件，如未分片时的缓存或分片数不同的旧分片
+     */
+    private static void deleteStaleFiles(File directory, int shardCount) throws IOException {
+        File[] files = directory.listFiles();
+        if(files == null){
+            return ;
+        }
+        String prefix = shardCount + ".";
+        for(File file : files){
+            String name = file.getName();
+            boolean shard = false;
+            if(file.isDirectory() && name.startsWith(prefix)){
+                try {
+                    int index = Integer.parseInt(name.substring(prefix.length()));
+                    shard = index >= 0 && index < shardCount && name.equals(shardName(shardCount, index));
+                } catch (NumberFormatException e) {
+                    shard = false;
+                }
+            }
+            if(shard){
+                continue;
+            }
+            if(file.isDirectory()){
+                DiskLruCache.deleteContents(file);
+            }
+            if(!file.delete()){
+                throw new IOException("failed to delete " + file);
+            }
+        }
+    }
+
+    private static String shardName(int shardCount, int index){
+        return shardCount + "." + index;
+    }
+
+    /**
+     * key通常是md5的十六进制串，取前两位决定分片；否则使用hashCode
+     */
+    private DiskLruCache shardFor(String key){
+        int hash = -1;
+        if(key.length() >= 2){
+            int high = Character.digit(key.charAt(0), 16);
+            int low = Character.digit(key.charAt(1), 16);
+            if(high >= 0 && low >= 0){
+                hash = high << 4 | low;
+            }
+        }
+        if(hash < 0){
+            hash = key.hashCode() & 0x7fffffff;
+        }
+        return mShards[hash % mShards.length];
+    }
+
+    public DiskLruCache.Snapshot get(String key) throws IOException {
+        return shardFor(key).get(key);
+    }
+
+    public DiskLruCache.Editor edit(String key) throws IOException {
+        return shardFor(key).edit(key);
+    }
+
+    public boolean remove(String key) throws IOException {
+        return shardFor(key).remove(key);
+    }
+
+    /**
+     * 返回为写入key腾出空间时将被淘汰的条目，key所在分片尚有空间时返回null
+     */
+    public String victimFor(String key){
+        DiskLruCache shard = shardFor(key);
+        //剩余空间不足1/16时认为已满
+        if(shard.size() < shard.maxSize() - shard.maxSize() / 16){
+            return null;
+        }
+        return shard.peekEldestKey();
+    }
+
+    public File getDirectory(){
+        return mDirectory;
+    }
+
+    public long maxSize(){
+        return mMaxSize;
+    }
+
+    public long size(){
+        long size = 0;
+        for(DiskLruCache shard : mShards){
+            size += shard.size();
+        }
+        return size;
+    }
+
+    public void flush() throws IOException {
+        for(DiskLruCache shard : mShards){
+            shard.flush();
+        }
+    }
+
+    public boolean isClosed(){
+        return mShards[0].isClosed();
+    }
+
+    public void close() throws IOException {
+        IOException error = null;
+        for(DiskLruCache shard : mShards){
+            try {
+                shard.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if(error != null){
+            throw error;
+        }
+    }
+
+    /**
+     * 关闭缓存并删除所有分片
+     */
+    public void delete() throws IOException {
+        close();
+        DiskLruCache.deleteContents(mDirectory);
+    }
+}
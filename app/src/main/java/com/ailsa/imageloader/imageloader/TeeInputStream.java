@@ -0,0 +1,77 @@
+package com.ailsa.imageloader.imageloader;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 读取的同时把读到的内容写入branch，用于下载时一边解码一边写入磁盘缓存。
+ * 不支持mark/reset，skip的内容也会写入branch
+ */
+
+public class TeeInputStream extends FilterInputStream {
+
+    private final OutputStream mBranch;
+    private long mCount;
+
+    public TeeInputStream(InputStream in, OutputStream branch){
+        super(in);
+        mBranch = branch;
+    }
+
+    /**
+     * 已经读取并写入branch的字节数
+     */
+    public long getCount(){
+        return mCount;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if(b != -1){
+            mBranch.write(b);
+            mCount++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int count = in.read(buffer, offset, length);
+        if(count > 0){
+            mBranch.write(buffer, offset, count);
+            mCount += count;
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(n, 4096)];
+        long skipped = 0;
+        while(skipped < n){
+            int count = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if(count == -1){
+                break;
+            }
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+}
@@ -0,0 +1,285 @@
+package com.ailsa.imageloader.imageloader;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * W-TinyLFU策略：新条目先进入占容量1%的window LRU，被挤出window后进入主缓存的probation段，
+ * 在probation中再次命中则升入占主缓存80%的protected段。
+ * 容量不足时，只有访问频率高于probation中最久未用条目的新条目才能留下，
+ * 因此快速滑动时只出现一次的图片不会挤掉头像等常用图片。
+ * 预加载的条目即将显示，作为候选时不比较访问频率，直接替换probation中最久未用的条目。
+ */
+
+public class TinyLfuMemoryCache<K, V> extends MemoryCache<K, V> {
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final HashMap<K, Node<K, V>> mMap = new HashMap<K, Node<K, V>>();
+    //各段的链表头，头部是最久未使用的条目
+    private final Node<K, V> mWindow = new Node<K, V>(null, null, 0, WINDOW);
+    private final Node<K, V> mProbation = new Node<K, V>(null, null, 0, PROBATION);
+    private final Node<K, V> mProtected = new Node<K, V>(null, null, 0, PROTECTED);
+    private final int[] mSizes = new int[3];
+    private final FrequencySketch mSketch;
+    private int mSize;
+    private int mMaxSize;
+    private int mWindowMaxSize;
+    private int mProtectedMaxSize;
+
+    /**
+     * @param expectedEntries 缓存大约能容纳的条目数，决定频率统计的大小
+     */
+    public TinyLfuMemoryCache(int maxSize, int expectedEntries){
+        if(maxSize <= 0){
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mSketch = new FrequencySketch(expectedEntries);
+        setMaxSize(maxSize);
+    }
+
+    private void setMaxSize(int maxSize){
+        mMaxSize = maxSize;
+        mWindowMaxSize = Math.max(1, maxSize / 100);
+        mProtectedMaxSize = (maxSize - mWindowMaxSize) / 5 * 4;
+    }
+
+    @Override
+    public V get(K key) {
+        synchronized (this){
+            mSketch.increment(key);
+            Node<K, V> node = mMap.get(key);
+            if(node == null){
+                return null;
+            }
+            onHit(node);
+            return node.value;
+        }
+    }
+
+    @Override
+    public synchronized boolean containsKey(K key) {
+        return mMap.containsKey(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        return put(key, value, false);
+    }
+
+    @Override
+    public V putPrefetched(K key, V value) {
+        return put(key, value, true);
+    }
+
+    private V put(K key, V value, boolean prefetched) {
+        if(key == null || value == null){
+            throw new NullPointerException("key == null || value == null");
+        }
+        V previous = null;
+        List<Node<K, V>> evicted;
+        synchronized (this){
+            int size = sizeOf(key, value);
+            Node<K, V> node = mMap.get(key);
+            if(node != null){
+                previous = node.value;
+                node.value = value;
+                setSize(node, size);
+                onHit(node);
+            } else {
+                node = new Node<K, V>(key, value, size, WINDOW);
+                node.prefetched = prefetched;
+                mMap.put(key, node);
+                linkLast(mWindow, node);
+            }
+            evicted = evict();
+        }
+        if(previous != null){
+            entryRemoved(false, key, previous, value);
+        }
+        notifyEvicted(evicted);
+        return previous;
+    }
+
+    @Override
+    public V remove(K key) {
+        Node<K, V> node;
+        synchronized (this){
+            node = mMap.remove(key);
+            if(node != null){
+                unlink(node);
+            }
+        }
+        if(node == null){
+            return null;
+        }
+        entryRemoved(false, key, node.value, null);
+        return node.value;
+    }
+
+    /**
+     * 依次淘汰probation、window、protected中最久未使用的条目
+     */
+    @Override
+    public void trimToSize(int maxSize) {
+        List<Node<K, V>> evicted = new ArrayList<Node<K, V>>();
+        synchronized (this){
+            while(mSize > maxSize && !mMap.isEmpty()){
+                Node<K, V> node = first(mProbation);
+                if(node == null){
+                    node = first(mWindow);
+                }
+                if(node == null){
+                    node = first(mProtected);
+                }
+                evictNode(node, evicted);
+            }
+        }
+        notifyEvicted(evicted);
+    }
+
+    @Override
+    public void resize(int maxSize) {
+        if(maxSize <= 0){
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        List<Node<K, V>> evicted;
+        synchronized (this){
+            setMaxSize(maxSize);
+            //window和protected的容量随之缩小，多出的条目依次降入probation再按频率淘汰
+            while(mSizes[PROTECTED] > mProtectedMaxSize){
+                moveTo(first(mProtected), mProbation);
+            }
+            evicted = evict();
+        }
+        notifyEvicted(evicted);
+    }
+
+    @Override
+    public synchronized int size() {
+        return mSize;
+    }
+
+    @Override
+    public synchronized int maxSize() {
+        return mMaxSize;
+    }
+
+    private void onHit(Node<K, V> node){
+        node.prefetched = false;
+        if(node.queue == PROBATION){
+            //在probation中再次被访问，升入protected
+            moveTo(node, mProtected);
+            while(mSizes[PROTECTED] > mProtectedMaxSize){
+                moveTo(first(mProtected), mProbation);
+            }
+        } else {
+            moveTo(node, node.queue == WINDOW ? mWindow : mProtected);
+        }
+    }
+
+    private List<Node<K, V>> evict(){
+        //挤出window的条目作为候选进入probation的尾部
+        while(mSizes[WINDOW] > mWindowMaxSize){
+            moveTo(first(mWindow), mProbation);
+        }
+        List<Node<K, V>> evicted = null;
+        while(mSize > mMaxSize){
+            if(evicted == null){
+                evicted = new ArrayList<Node<K, V>>();
+            }
+            Node<K, V> victim = first(mProbation);
+            Node<K, V> candidate = last(mProbation);
+            Node<K, V> node;
+            if(victim == null){
+                node = first(mProtected) != null ? first(mProtected) : first(mWindow);
+            } else if(victim == candidate){
+                node = victim;
+            } else if(candidate.prefetched){
+                node = victim;
+            } else {
+                //候选条目的访问频率更高时才淘汰victim，否则淘汰候选条目
+                node = mSketch.frequency(candidate.key) > mSketch.frequency(victim.key) ? victim : candidate;
+            }
+            evictNode(node, evicted);
+        }
+        return evicted;
+    }
+
+    private void evictNode(Node<K, V> node, List<Node<K, V>> evicted){
+        mMap.remove(node.key);
+        unlink(node);
+        evicted.add(node);
+    }
+
+    private void notifyEvicted(List<Node<K, V>> evicted){
+        if(evicted == null){
+            return ;
+        }
+        for(Node<K, V> node : evicted){
+            entryRemoved(true, node.key, node.value, null);
+        }
+    }
+
+    private void setSize(Node<K, V> node, int size){
+        mSizes[node.queue] += size - node.size;
+        mSize += size - node.size;
+        node.size = size;
+    }
+
+    private void moveTo(Node<K, V> node, Node<K, V> head){
+        unlink(node);
+        node.queue = head.queue;
+        linkLast(head, node);
+    }
+
+    private void linkLast(Node<K, V> head, Node<K, V> node){
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+        mSizes[head.queue] += node.size;
+        mSize += node.size;
+    }
+
+    private void unlink(Node<K, V> node){
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+        mSizes[node.queue] -= node.size;
+        mSize -= node.size;
+    }
+
+    private static <K, V> Node<K, V> first(Node<K, V> head){
+        return head.next != head ? head.next : null;
+    }
+
+    private static <K, V> Node<K, V> last(Node<K, V> head){
+        return head.prev != head ? head.prev : null;
+    }
+
+    static class Node<K, V>{
+        final K key;
+        V value;
+        int size;
+        int queue;
+        //预加载放入后还没有被访问过
+        boolean prefetched;
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, V value, int size, int queue){
+            this.key = key;
+            this.value = value;
+            this.size = size;
+            this.queue = queue;
+            //链表头指向自己
+            prev = this;
+            next = this;
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package com.ailsa.imageloader.imageloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * 磁盘缓存的并发读取测试：多个线程同时命中磁盘缓存时不再互相阻塞，
+ * 并且读到的两个value总是来自同一次提交。
+ * 另外验证了从二进制索引打开缓存，以及小图合并存放在segment中时读到的内容。
+ * 重放文本journal与读取二进制索引两种打开方式的耗时对比默认不运行。
+ */
+public class DiskLruCacheTest {
+
+    private static final int ENTRIES = 200;
+    private static final int VALUE_SIZE = 4 * 1024;
+    private static final int READS_PER_THREAD = 2000;
+
+    private File dir;
+    private DiskLruCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File(System.getProperty("java.io.tmpdir"), "disklrucache-" + System.nanoTime());
+        cache = DiskLruCache.open(dir, 1, 2, Long.MAX_VALUE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cache.delete();
+    }
+
+    @Test
+    public void concurrentReadsSeeWholeCommits() throws Exception {
+        checkConcurrentReads();
+    }
+
+    @Test
+    public void concurrentReadsSeeWholeCommitsWhenPacked() throws Exception {
+        cache.close();
+        cache = DiskLruCache.open(dir, 1, 2, Long.MAX_VALUE, DiskLruCache.DURABILITY_GROUP_COMMIT, 1024);
+        checkConcurrentReads();
+    }
+
+    private void checkConcurrentReads() throws Exception {
+        write("k", "0");
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 2000; i++) {
+                            DiskLruCache.Snapshot snapshot = cache.get("k");
+                            if (snapshot != null) {
+                                String a = snapshot.getString(0);
+                                String b = snapshot.getString(1);
+                                snapshot.close();
+                                assertEquals(a, b);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        for (int i = 1; done.getCount() > 0; i++) {
+            write("k", Integer.toString(i));
+        }
+        done.await();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    @Test
+    public void crashBeforeGroupCommitNeverMixesEdits() throws Exception {
+        for (int packThreshold : new int[]{0, 1024}) {
+            cache.delete();
+            cache = DiskLruCache.open(dir, 1, 2, Long.MAX_VALUE, DiskLruCache.DURABILITY_GROUP_COMMIT, packThreshold);
+            write("k", "old");
+            cache.flush();
+            write("k", "a much longer new value");
+            //在批量写入journal之前复制缓存目录，相当于此时进程崩溃
+            File copy = new File(dir.getPath() + "-crash");
+            copyDirectory(dir, copy);
+            DiskLruCache recovered = DiskLruCache.open(copy, 1, 2, Long.MAX_VALUE,
+                    DiskLruCache.DURABILITY_GROUP_COMMIT, packThreshold);
+            try {
+                DiskLruCache.Snapshot snapshot = recovered.get("k");
+                if (snapshot == null) {
+                    assertEquals(0, recovered.size());
+                } else {
+                    //两个value来自同一次提交，记录的长度与内容一致
+                    String value = snapshot.getString(0);
+                    assertEquals(value, snapshot.getString(1));
+                    assertEquals(value.length() * 2, recovered.size());
+                    snapshot.close();
+                }
+            } finally {
+                recovered.delete();
+            }
+        }
+    }
+
+    @Test
+    public void evictsLeastRecentlyRead() throws Exception {
+        cache.close();
+        cache = DiskLruCache.open(dir, 1, 2, 4);
+        write("a", "1");
+        write("b", "1");
+        cache.get("a").close();
+        write("c", "1");
+        cache.flush();
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+
+    @Test
+    public void concurrentReadersAllHit() throws Exception {
+        byte[] value = new byte[VALUE_SIZE];
+        for (int i = 0; i < ENTRIES; i++) {
+            DiskLruCache.Editor editor = cache.edit("key" + i);
+            for (int v = 0; v < 2; v++) {
+                OutputStream os = editor.newOutputStream(v);
+                os.write(value);
+                os.close();
+            }
+            editor.commit();
+        }
+        readConcurrently(4);
+    }
+
+    @Test
+    public void reopenUsesIndexAndJournalTail() throws Exception {
+        write("a", "1");
+        write("b", "22");
+        cache.close();
+        assertTrue(new File(dir, DiskLruCache.JOURNAL_INDEX).exists());
+        cache = DiskLruCache.open(dir, 1, 2, Long.MAX_VALUE);
+        //索引之后的操作只记录在journal里
+        write("c", "333");
+        cache.remove("a");
+        cache.flush();
+        cache = DiskLruCache.open(dir, 1, 2, Long.MAX_VALUE);
+        assertNull(cache.get("a"));
+        assertEquals("22", cache.get("b").getString(1));
+        assertEquals("333", cache.get("c").getString(0));
+        assertEquals(10, cache.size());
+    }
+
+    @Test
+    public void reopensLargeJournalFromIndex() throws Exception {
+        int entries = 10000;
+        cache.delete();
+        writeSyntheticJournal(entries);
+        cache = DiskLruCache.open(dir, 1, 2, Long.MAX_VALUE);
+        assertEquals(entries * 3L, cache.size());
+        assertTrue(cache.checkpointRequired());
+        //close时写入索引，再次打开时只读取索引
+        cache.close();
+        assertTrue(new File(dir, DiskLruCache.JOURNAL_INDEX).exists());
+        cache = DiskLruCache.open(dir, 1, 2, Long.MAX_VALUE);
+        assertEquals(entries * 3L, cache.size());
+        //索引已覆盖整个journal，打开后的第一次提交不会重写索引
+        assertFalse(cache.checkpointRequired());
+    }
+
+    @Ignore("benchmark")
+    @Test
+    public void startupBenchmark() throws Exception {
+        for (int entries : new int[]{10000, 100000}) {
+            cache.delete();
+            writeSyntheticJournal(entries);
+            long start = System.nanoTime();
+            cache = DiskLruCache.open(dir, 1, 2, Long.MAX_VALUE);
+            long journalMillis = (System.nanoTime() - start) / 1000000;
+            assertEquals(entries * 3L, cache.size());
+            cache.close();
+            start = System.nanoTime();
+            cache = DiskLruCache.open(dir, 1, 2, Long.MAX_VALUE);
+            long indexMillis = (System.nanoTime() - start) / 1000000;
+            assertEquals(entries * 3L, cache.size());
+            assertTrue(String.format("open %d entries: journal %d ms, index %d ms",
+                    entries, journalMillis, indexMillis), indexMillis < journalMillis);
+        }
+    }
+
+    @Test
+    public void packedEntriesSurviveReopenAndCompaction() throws Exception {
+        cache.close();
+        cache = DiskLruCache.open(dir, 1, 2, Long.MAX_VALUE, DiskLruCache.DURABILITY_GROUP_COMMIT, 1024);
+        write("small", "ab");
+        write("small", "abc");
+        DiskLruCache.Editor editor = cache.edit("large");
+        editor.set(0, new String(new char[2048]).replace('\0', 'x'));
+        editor.set(1, "1");
+        editor.commit();
+        //小的条目没有单独的文件
+        assertFalse(new File(dir, "small.0").exists());
+        assertTrue(new File(dir, "large.0").exists());
+        assertEquals("abc", cache.get("small").getString(1));
+        //只修改一个value时另一个value从segment中复制
+        editor = cache.edit("small");
+        editor.set(1, "defg");
+        editor.commit();
+        DiskLruCache.Snapshot snapshot = cache.get("small");
+        assertEquals("abc", snapshot.getString(0));
+        assertEquals("defg", snapshot.getString(1));
+        cache.flush();
+        cache = DiskLruCache.open(dir, 1, 2, Long.MAX_VALUE, DiskLruCache.DURABILITY_GROUP_COMMIT, 1024);
+        assertEquals("defg", cache.get("small").getString(1));
+        cache.close();
+        cache = DiskLruCache.open(dir, 1, 2, Long.MAX_VALUE, DiskLruCache.DURABILITY_GROUP_COMMIT, 1024);
+        assertEquals("abc", cache.get("small").getString(0));
+        assertEquals(2048 + 1 + 3 + 4, cache.size());
+        //segment 0中"small"的前两个版本已失效，超过一半是无效数据，整理时被删除
+        File oldSegment = new File(dir, DiskLruCache.SEGMENT_PREFIX + "0");
+        assertTrue(oldSegment.exists());
+        cache.flush();
+        assertFalse(oldSegment.exists());
+        assertEquals("defg", cache.get("small").getString(1));
+        cache.close();
+        cache = DiskLruCache.open(dir, 1, 2, Long.MAX_VALUE, DiskLruCache.DURABILITY_GROUP_COMMIT, 1024);
+        assertEquals("abc", cache.get("small").getString(0));
+    }
+
+    @Test
+    public void packedAndFileEntriesReadBack() throws Exception {
+        byte[] value = new byte[12 * 1024];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) i;
+        }
+        for (int packThreshold : new int[]{0, 64 * 1024}) {
+            cache.delete();
+            cache = DiskLruCache.open(dir, 1, 2, Long.MAX_VALUE,
+                    DiskLruCache.DURABILITY_GROUP_COMMIT, packThreshold);
+            for (int i = 0; i < ENTRIES; i++) {
+                DiskLruCache.Editor editor = cache.edit("key" + i);
+                OutputStream os = editor.newOutputStream(0);
+                os.write(value);
+                os.close();
+                editor.set(1, "info");
+                editor.commit();
+            }
+            assertEquals(packThreshold == 0, new File(dir, "key0.0").exists());
+            byte[] buffer = new byte[value.length];
+            for (int i = 0; i < ENTRIES; i++) {
+                DiskLruCache.Snapshot snapshot = cache.get("key" + i);
+                int read = 0;
+                int count;
+                while ((count = snapshot.getInputStream(0).read(buffer, read, buffer.length - read)) > 0) {
+                    read += count;
+                }
+                assertEquals(value.length, read);
+                assertArrayEquals(value, buffer);
+                assertEquals("info", snapshot.getString(1));
+                snapshot.close();
+            }
+        }
+    }
+
+    /**
+     * 只生成journal而不生成value文件，打开缓存时不会访问value文件
+     */
+    private void writeSyntheticJournal(int entries) throws IOException {
+        dir.mkdirs();
+        Writer writer = new BufferedWriter(new FileWriter(new File(dir, DiskLruCache.JOURNAL_FILE)));
+        writer.write(DiskLruCache.MAGIC + "\n" + DiskLruCache.VERSION_1 + "\n1\n2\n\n");
+        for (int i = 0; i < entries; i++) {
+            String key = String.format("%032x", i);
+            writer.write("DIRTY " + key + "\n");
+            writer.write("CLEAN " + key + " 1 2\n");
+            if (i % 3 == 0) {
+                writer.write("READ " + key + "\n");
+            }
+        }
+        writer.close();
+    }
+
+    private void readConcurrently(int threads) throws Exception {
+        final AtomicInteger misses = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < READS_PER_THREAD; i++) {
+                            DiskLruCache.Snapshot snapshot = cache.get("key" + ((i + seed) % ENTRIES));
+                            if (snapshot == null) {
+                                misses.incrementAndGet();
+                            } else {
+                                snapshot.close();
+                            }
+                        }
+                    } catch (IOException e) {
+                        misses.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        assertEquals(0, misses.get());
+    }
+
+    private static void copyDirectory(File from, File to) throws IOException {
+        to.mkdirs();
+        for (File file : from.listFiles()) {
+            InputStream in = new FileInputStream(file);
+            OutputStream out = new FileOutputStream(new File(to, file.getName()));
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                in.close();
+                out.close();
+            }
+        }
+    }
+
+    private void write(String key, String value) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, value);
+        editor.set(1, value);
+        editor.commit();
+    }
+}
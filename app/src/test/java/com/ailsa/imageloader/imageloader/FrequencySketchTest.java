@@ -0,0 +1,105 @@
+package com.ailsa.imageloader.imageloader;
+
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 用模拟的访问序列对比LRU与加入TinyLFU准入后的命中率：
+ * 常用图片服从Zipf分布，中间穿插快速滑动时只出现一次的图片
+ */
+public class FrequencySketchTest {
+
+    private static final int CAPACITY = 200;
+    private static final int POPULAR = 2000;
+    private static final int REQUESTS = 200000;
+
+    @Test
+    public void countsAndAges() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        for(int i = 0; i < 5; i++){
+            sketch.increment("hot");
+        }
+        sketch.increment("warm");
+        assertEquals(5, sketch.frequency("hot"));
+        assertEquals(1, sketch.frequency("warm"));
+        assertEquals(0, sketch.frequency("cold"));
+        for(int i = 0; i < 20; i++){
+            sketch.increment("hot");
+        }
+        assertEquals(15, sketch.frequency("hot"));
+        //记录次数达到容量的10倍后计数减半
+        for(int i = 0; i < 640; i++){
+            sketch.increment("other" + i);
+        }
+        assertTrue(sketch.frequency("hot") <= 8);
+    }
+
+    @Test
+    public void admissionRaisesHitRatio() {
+        String[] trace = trace();
+        double lru = hitRatio(trace, null);
+        double tinyLfu = hitRatio(trace, new FrequencySketch(CAPACITY));
+        assertTrue(tinyLfu > lru);
+    }
+
+    private static String[] trace() {
+        Random random = new Random(7);
+        double[] cdf = new double[POPULAR];
+        double sum = 0;
+        for(int i = 0; i < POPULAR; i++){
+            sum += 1.0 / (i + 1);
+            cdf[i] = sum;
+        }
+        String[] trace = new String[REQUESTS];
+        int oneTime = 0;
+        for(int i = 0; i < REQUESTS; ){
+            if(random.nextInt(100) == 0){
+                //一次快速滑动
+                for(int n = 0; n < 50 && i < REQUESTS; n++){
+                    trace[i++] = "fling" + oneTime++;
+                }
+            } else {
+                double target = random.nextDouble() * sum;
+                int index = 0;
+                while(cdf[index] < target){
+                    index++;
+                }
+                trace[i++] = "popular" + index;
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * 模拟与ImageLoader相同的流程：未命中时记录访问，缓存已满时由sketch决定是否写入
+     */
+    private static double hitRatio(String[] trace, FrequencySketch sketch) {
+        LinkedHashMap<String, Boolean> cache = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+        int hits = 0;
+        for(String key : trace){
+            if(sketch != null){
+                sketch.increment(key);
+            }
+            if(cache.get(key) != null){
+                hits++;
+                continue;
+            }
+            if(cache.size() < CAPACITY){
+                cache.put(key, Boolean.TRUE);
+                continue;
+            }
+            Iterator<String> eldest = cache.keySet().iterator();
+            String victim = eldest.next();
+            if(sketch == null || sketch.frequency(key) > sketch.frequency(victim)){
+                eldest.remove();
+                cache.put(key, Boolean.TRUE);
+            }
+        }
+        return (double) hits / trace.length;
+    }
+}
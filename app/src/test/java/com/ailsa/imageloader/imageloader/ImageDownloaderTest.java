@@ -0,0 +1,231 @@
+package com.ailsa.imageloader.imageloader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 用本地HTTP服务代替图片服务器，验证下载内容、边下载边读取、连接复用和304条件请求。
+ * 与逐字节复制的速度对比耗时且结果依赖机器，默认不运行
+ */
+public class ImageDownloaderTest {
+
+    private static final int BODY_SIZE = 4 * 1024 * 1024;
+    private static final int ROUNDS = 5;
+    private static final String ETAG = "\"v1\"";
+    private static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+
+    private HttpServer server;
+    private byte[] body;
+    private String url;
+    private String etagUrl;
+    //每个请求的客户端端口，端口相同说明复用了同一个连接
+    private final List<Integer> clientPorts = new ArrayList<Integer>();
+    private final List<String> conditions = new ArrayList<String>();
+
+    @Before
+    public void setUp() throws Exception {
+        body = new byte[BODY_SIZE];
+        new Random(1).nextBytes(body);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/image", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(body);
+                os.close();
+            }
+        });
+        server.createContext("/etag", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+                synchronized (clientPorts){
+                    clientPorts.add(exchange.getRemoteAddress().getPort());
+                    conditions.add(ifNoneMatch);
+                }
+                exchange.getResponseHeaders().add("Cache-Control", "public, max-age=60");
+                if(ETAG.equals(ifNoneMatch)){
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return ;
+                }
+                exchange.getResponseHeaders().add("ETag", ETAG);
+                exchange.getResponseHeaders().add("Last-Modified", LAST_MODIFIED);
+                exchange.sendResponseHeaders(200, 1024);
+                OutputStream os = exchange.getResponseBody();
+                os.write(body, 0, 1024);
+                os.close();
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/image";
+        etagUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/etag";
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void downloadCopiesWholeBody() throws Exception {
+        final long[] progress = new long[2];
+        ImageDownloader downloader = new ImageDownloader();
+        downloader.setProgressListener(new ImageDownloader.ProgressListener() {
+            @Override
+            public void onProgress(String url, long downloaded, long total) {
+                progress[0] = downloaded;
+                progress[1] = total;
+            }
+        });
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        assertTrue(downloader.downloadUrlToStream(url, os));
+        assertArrayEquals(body, os.toByteArray());
+        assertEquals(BODY_SIZE, progress[0]);
+        assertEquals(BODY_SIZE, progress[1]);
+    }
+
+    @Test
+    public void readerSeesBodyWhileItIsWritten() throws Exception {
+        final byte[] head = new byte[1000];
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        boolean success = new ImageDownloader().downloadUrlToStream(url, os, new ImageDownloader.StreamReader() {
+            @Override
+            public void read(InputStream is) throws IOException {
+                int offset = 0;
+                while(offset < head.length){
+                    offset += is.read(head, offset, head.length - offset);
+                }
+            }
+        });
+        assertTrue(success);
+        assertArrayEquals(Arrays.copyOf(body, head.length), head);
+        assertArrayEquals(body, os.toByteArray());
+    }
+
+    @Test
+    public void notModifiedResponseRefreshesCacheInfo() throws Exception {
+        ImageDownloader downloader = new ImageDownloader();
+        HttpCacheInfo[] response = new HttpCacheInfo[1];
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        long start = System.currentTimeMillis();
+        assertEquals(ImageDownloader.RESULT_OK, downloader.download(etagUrl, os, null, null, response));
+        assertEquals(1024, os.size());
+        HttpCacheInfo cached = HttpCacheInfo.parse(response[0].toString());
+        assertEquals(ETAG, cached.etag);
+        assertEquals(LAST_MODIFIED, cached.lastModified);
+        assertTrue(cached.expires >= start + 60 * 1000);
+        assertTrue(cached.hasValidators());
+
+        //过期后带上ETag重新请求，304时不写入任何内容
+        HttpCacheInfo stale = new HttpCacheInfo(cached.etag, cached.lastModified, start);
+        assertTrue(stale.isStale(System.currentTimeMillis()));
+        os = new ByteArrayOutputStream();
+        assertEquals(ImageDownloader.RESULT_NOT_MODIFIED, downloader.download(etagUrl, os, null, stale, response));
+        assertEquals(0, os.size());
+        assertEquals(ETAG, response[0].etag);
+        assertEquals(LAST_MODIFIED, response[0].lastModified);
+        assertFalse(response[0].isStale(System.currentTimeMillis()));
+        //刷新后内容版本不变，由该图片生成的缩略图仍然有效
+        assertEquals(stale.version(), stale.refresh(response[0]).version());
+        assertFalse(stale.version().equals(new HttpCacheInfo(null, null, start).version()));
+
+        synchronized (clientPorts){
+            assertNull(conditions.get(0));
+            assertEquals(ETAG, conditions.get(1));
+            //读完响应后连接放回连接池，第二个请求复用了同一个连接
+            assertEquals(clientPorts.get(0), clientPorts.get(1));
+        }
+    }
+
+    @Test
+    public void parsesCacheControl() {
+        assertEquals(60, HttpCacheInfo.parseMaxAge("public, max-age=60"));
+        assertEquals(0, HttpCacheInfo.parseMaxAge("no-cache"));
+        assertEquals(-1, HttpCacheInfo.parseMaxAge("public"));
+        assertEquals(-1, HttpCacheInfo.parseMaxAge(null));
+        HttpCacheInfo info = HttpCacheInfo.parse(new HttpCacheInfo(null, LAST_MODIFIED, 42).toString());
+        assertNull(info.etag);
+        assertEquals(LAST_MODIFIED, info.lastModified);
+        assertEquals(42, info.expires);
+        assertNull(HttpCacheInfo.parse("garbage"));
+    }
+
+    @Ignore("benchmark")
+    @Test
+    public void benchmarkAgainstByteAtATimeCopy() throws Exception {
+        File file = File.createTempFile("download", ".0");
+        try {
+            ImageDownloader downloader = new ImageDownloader();
+            //预热
+            legacyDownload(url, new FileOutputStream(file));
+            downloader.downloadUrlToStream(url, new FileOutputStream(file));
+
+            long start = System.nanoTime();
+            for(int i = 0; i < ROUNDS; i++){
+                assertTrue(legacyDownload(url, new FileOutputStream(file)));
+            }
+            double legacy = throughput(System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for(int i = 0; i < ROUNDS; i++){
+                assertTrue(downloader.downloadUrlToStream(url, new FileOutputStream(file)));
+            }
+            double pooled = throughput(System.nanoTime() - start);
+            assertEquals(BODY_SIZE, file.length());
+            assertTrue(String.format("byte-at-a-time: %.1f MB/s, pooled buffer: %.1f MB/s", legacy, pooled),
+                    pooled > legacy);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static double throughput(long nanos){
+        return (double) BODY_SIZE * ROUNDS / (1024 * 1024) / (nanos / 1e9);
+    }
+
+    /**
+     * 原来ImageLoader.downloadUrlToStream中的复制方式
+     */
+    private static boolean legacyDownload(String urlString, OutputStream outputStream) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(urlString).openConnection();
+        try {
+            BufferedInputStream bis = new BufferedInputStream(connection.getInputStream());
+            BufferedOutputStream bos = new BufferedOutputStream(outputStream);
+            int bytes;
+            while((bytes = bis.read()) != -1){
+                bos.write(bytes);
+            }
+            bis.close();
+            bos.close();
+            return true;
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
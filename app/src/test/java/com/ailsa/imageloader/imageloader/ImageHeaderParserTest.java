@@ -0,0 +1,151 @@
+package com.ailsa.imageloader.imageloader;
+
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class ImageHeaderParserTest {
+
+    @Test
+    public void parsesJpegSofAfterApp0() {
+        ImageInfo info = parse(0xFF, 0xD8,
+                0xFF, 0xE0, 0x00, 0x06, 'J', 'F', 'I', 'F',
+                0xFF, 0xC0, 0x00, 0x11, 0x08, 0x01, 0xE0, 0x02, 0x80);
+        assertEquals(640, info.width);
+        assertEquals(480, info.height);
+        assertEquals(ImageHeaderParser.MIME_JPEG, info.mimeType);
+        assertFalse(info.hasAlpha);
+    }
+
+    @Test
+    public void parsesPngIhdr() {
+        ImageInfo info = parse(0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A,
+                0x00, 0x00, 0x00, 0x0D, 'I', 'H', 'D', 'R',
+                0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x80, 0x08, 0x06);
+        assertEquals(256, info.width);
+        assertEquals(128, info.height);
+        assertEquals(ImageHeaderParser.MIME_PNG, info.mimeType);
+        //颜色类型6为RGBA
+        assertTrue(info.hasAlpha);
+    }
+
+    @Test
+    public void detectsPngTransparencyChunk() {
+        //RGB，IDAT之前没有tRNS
+        ImageInfo opaque = parse(0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A,
+                0x00, 0x00, 0x00, 0x0D, 'I', 'H', 'D', 'R',
+                0x00, 0x00, 0x00, 0x10, 0x00, 0x00, 0x00, 0x10, 0x08, 0x02, 0, 0, 0, 0, 0, 0, 0,
+                0x00, 0x00, 0x00, 0x01, 's', 'R', 'G', 'B', 0x00, 0, 0, 0, 0,
+                0x00, 0x00, 0x00, 0x00, 'I', 'D', 'A', 'T');
+        assertFalse(opaque.hasAlpha);
+        //调色板图片带有tRNS
+        ImageInfo transparent = parse(0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A,
+                0x00, 0x00, 0x00, 0x0D, 'I', 'H', 'D', 'R',
+                0x00, 0x00, 0x00, 0x10, 0x00, 0x00, 0x00, 0x10, 0x08, 0x03, 0, 0, 0, 0, 0, 0, 0,
+                0x00, 0x00, 0x00, 0x03, 'P', 'L', 'T', 'E', 0, 0, 0, 0, 0, 0, 0,
+                0x00, 0x00, 0x00, 0x01, 't', 'R', 'N', 'S', 0x00, 0, 0, 0, 0);
+        assertTrue(transparent.hasAlpha);
+        //在IDAT之前就结束，无法确定时按透明处理
+        ImageInfo truncated = parse(0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A,
+                0x00, 0x00, 0x00, 0x0D, 'I', 'H', 'D', 'R',
+                0x00, 0x00, 0x00, 0x10, 0x00, 0x00, 0x00, 0x10, 0x08, 0x02);
+        assertTrue(truncated.hasAlpha);
+    }
+
+    @Test
+    public void parsesGifScreenDescriptor() {
+        ImageInfo info = parse('G', 'I', 'F', '8', '9', 'a', 0x2C, 0x01, 0xC8, 0x00);
+        assertEquals(300, info.width);
+        assertEquals(200, info.height);
+    }
+
+    @Test
+    public void parsesLossyWebp() {
+        ImageInfo info = parse('R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'E', 'B', 'P',
+                'V', 'P', '8', ' ', 0, 0, 0, 0,
+                0, 0, 0, 0x9D, 0x01, 0x2A, 0x20, 0x03, 0x58, 0x02);
+        assertEquals(800, info.width);
+        assertEquals(600, info.height);
+        assertEquals(ImageHeaderParser.MIME_WEBP, info.mimeType);
+        assertFalse(info.hasAlpha);
+    }
+
+    @Test
+    public void parsesExtendedWebp() {
+        ImageInfo info = parse('R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'E', 'B', 'P',
+                'V', 'P', '8', 'X', 0, 0, 0, 0,
+                0x10, 0, 0, 0, 0x3F, 0x01, 0x00, 0xEF, 0x00, 0x00);
+        assertEquals(320, info.width);
+        assertEquals(240, info.height);
+        //标志位0x10表示带有alpha
+        assertTrue(info.hasAlpha);
+    }
+
+    @Test
+    public void rejectsUnknownAndTruncatedData() {
+        assertNull(parse('B', 'M', 0, 0, 0, 0));
+        assertNull(parse(0xFF, 0xD8, 0xFF, 0xC0, 0x00));
+    }
+
+    @Test
+    public void stopsLargeApp1WithinMarkLimit() throws IOException {
+        //小于限制的APP1之后仍能找到SOF
+        BufferedInputStream small = new BufferedInputStream(new ByteArrayInputStream(jpegWithApp1(1)), 8192);
+        small.mark(ImageHeaderParser.MAX_HEADER_BYTES);
+        ImageInfo info = ImageHeaderParser.parse(small);
+        assertEquals(640, info.width);
+        assertEquals(480, info.height);
+        //EXIF缩略图等使APP1超过限制时放弃解析，读取的内容不超出mark的范围，仍能重置
+        BufferedInputStream large = new BufferedInputStream(new ByteArrayInputStream(jpegWithApp1(3)), 8192);
+        large.mark(ImageHeaderParser.MAX_HEADER_BYTES);
+        assertNull(ImageHeaderParser.parse(large));
+        large.reset();
+        assertEquals(0xFF, large.read());
+        assertEquals(0xD8, large.read());
+    }
+
+    @Test
+    public void infoRoundTripsThroughString() {
+        ImageInfo info = ImageInfo.parse(new ImageInfo(10, 20, "image/png", false).toString());
+        assertEquals(10, info.width);
+        assertEquals(20, info.height);
+        assertEquals("image/png", info.mimeType);
+        assertFalse(info.hasAlpha);
+        assertNull(ImageInfo.parse(""));
+        //之前没有保存是否透明的信息，按类型判断
+        assertFalse(ImageInfo.parse("10 20 image/jpeg").hasAlpha);
+        assertTrue(ImageInfo.parse("10 20 image/png").hasAlpha);
+    }
+
+    /**
+     * SOF之前有count个最长的APP1段的JPEG
+     */
+    private static byte[] jpegWithApp1(int count) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        os.write(0xFF);
+        os.write(0xD8);
+        for (int i = 0; i < count; i++) {
+            os.write(0xFF);
+            os.write(0xE1);
+            os.write(0xFF);
+            os.write(0xFF);
+            os.write(new byte[0xFFFF - 2], 0, 0xFFFF - 2);
+        }
+        byte[] sof = {(byte) 0xFF, (byte) 0xC0, 0x00, 0x11, 0x08, 0x01, (byte) 0xE0, 0x02, (byte) 0x80};
+        os.write(sof, 0, sof.length);
+        return os.toByteArray();
+    }
+
+    private static ImageInfo parse(int... bytes) {
+        byte[] data = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            data[i] = (byte) bytes[i];
+        }
+        return ImageHeaderParser.parse(new ByteArrayInputStream(data));
+    }
+}
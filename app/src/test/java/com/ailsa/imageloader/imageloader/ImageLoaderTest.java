@@ -0,0 +1,27 @@
+package com.ailsa.imageloader.imageloader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 内存缓存key中尺寸的解析，key的格式见ImageLoader.memoryCacheKey
+ */
+public class ImageLoaderTest {
+
+    @Test
+    public void parsesVariantSizeWithAnyConfig() {
+        assertArrayEquals(new int[]{256, 128}, ImageLoader.parseVariantSize("9e3779b1_256x128_AUTO"));
+        assertArrayEquals(new int[]{256, 128}, ImageLoader.parseVariantSize("9e3779b1_256x128_RGB_565"));
+        assertArrayEquals(new int[]{64, 48}, ImageLoader.parseVariantSize("9e3779b1_64x48_ARGB_8888"));
+        assertArrayEquals(new int[]{0, 0}, ImageLoader.parseVariantSize("9e3779b1_0x0_ALPHA_8"));
+    }
+
+    @Test
+    public void rejectsMalformedVariantKeys() {
+        assertNull(ImageLoader.parseVariantSize("9e3779b1"));
+        assertNull(ImageLoader.parseVariantSize("9e3779b1_256x128"));
+        assertNull(ImageLoader.parseVariantSize("9e3779b1_256_RGB_565"));
+        assertNull(ImageLoader.parseVariantSize("9e3779b1_widexhigh_AUTO"));
+    }
+}
@@ -0,0 +1,243 @@
+package com.ailsa.imageloader.imageloader;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 内存缓存策略：基本的容量与回调语义，以及用模拟的浏览序列对比LRU与W-TinyLFU的命中率
+ */
+public class MemoryCacheTest {
+
+    private static final int HOT = 40;
+    private static final int LIST = 3000;
+    private static final int REQUESTS = 200000;
+
+    @Test
+    public void keepsByteBudgetAndReportsRemovals() {
+        final List<String> removed = new ArrayList<String>();
+        MemoryCache<String, Integer> cache = new TinyLfuMemoryCache<String, Integer>(100, 16){
+            @Override
+            protected int sizeOf(String key, Integer value) {
+                return value;
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Integer oldValue, Integer newValue) {
+                removed.add((evicted ? "evicted " : "removed ") + key);
+            }
+        };
+        cache.put("a", 30);
+        cache.put("b", 30);
+        cache.put("c", 30);
+        assertEquals(90, cache.size());
+        assertEquals(Integer.valueOf(30), cache.put("a", 40));
+        assertEquals("removed a", removed.get(0));
+        cache.put("d", 30);
+        assertTrue(cache.size() <= 100);
+        assertEquals(2, removed.size());
+        cache.remove("b");
+        cache.trimToSize(0);
+        assertEquals(0, cache.size());
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void containsKeyDoesNotCountAsAccess() {
+        MemoryCache<String, Integer> lru = new LruMemoryCache<String, Integer>(3);
+        lru.put("a", 1);
+        lru.put("b", 1);
+        lru.put("c", 1);
+        assertTrue(lru.containsKey("a"));
+        //containsKey没有把a移到最近使用的位置，a仍然最先被淘汰
+        lru.put("d", 1);
+        assertFalse(lru.containsKey("a"));
+        assertTrue(lru.containsKey("b"));
+
+        MemoryCache<String, Integer> tinyLfu = new TinyLfuMemoryCache<String, Integer>(100, 16);
+        tinyLfu.put("a", 1);
+        assertTrue(tinyLfu.containsKey("a"));
+        assertFalse(tinyLfu.containsKey("b"));
+    }
+
+    @Test
+    public void prefetchedEntriesSurviveFullCache() {
+        MemoryCache<String, Integer> cache = new TinyLfuMemoryCache<String, Integer>(100, 64);
+        //与bindBitmap一样先get再put，填满缓存
+        for(int i = 0; i < 100; i++){
+            assertNull(cache.get("k" + i));
+            cache.put("k" + i, i);
+        }
+        //常用的条目再次命中，升入protected
+        for(int i = 0; i < 50; i++){
+            assertNotNull(cache.get("k" + i));
+        }
+        for(int i = 0; i < 20; i++){
+            cache.putPrefetched("p" + i, i);
+        }
+        assertEquals(100, cache.size());
+        for(int i = 0; i < 20; i++){
+            assertTrue(cache.containsKey("p" + i));
+        }
+        //预加载只替换probation中的条目，不影响常用的条目
+        for(int i = 0; i < 50; i++){
+            assertTrue(cache.containsKey("k" + i));
+        }
+    }
+
+    @Test
+    public void resizeEvictsDownToNewBudget() {
+        List<MemoryCache<String, Integer>> caches = new ArrayList<MemoryCache<String, Integer>>();
+        caches.add(new LruMemoryCache<String, Integer>(1000){
+            @Override
+            protected int sizeOf(String key, Integer value) {
+                return value;
+            }
+        });
+        caches.add(new TinyLfuMemoryCache<String, Integer>(1000, 64){
+            @Override
+            protected int sizeOf(String key, Integer value) {
+                return value;
+            }
+        });
+        for(MemoryCache<String, Integer> cache : caches){
+            for(int i = 0; i < 50; i++){
+                cache.put("k" + i, 20);
+            }
+            assertEquals(1000, cache.size());
+            cache.resize(300);
+            assertEquals(300, cache.maxSize());
+            assertTrue(cache.size() <= 300);
+            assertTrue(cache.size() > 0);
+            //缩小后新放入的条目仍受新容量限制
+            cache.put("new", 20);
+            assertTrue(cache.size() <= 300);
+            cache.resize(1000);
+            for(int i = 0; i < 50; i++){
+                cache.put("m" + i, 20);
+            }
+            assertEquals(1000, cache.size());
+        }
+    }
+
+    @Test
+    public void lruContainsKeyFollowsRemovals() {
+        final List<String> removed = new ArrayList<String>();
+        final MemoryCache<String, Integer> cache = new LruMemoryCache<String, Integer>(100){
+            @Override
+            protected int sizeOf(String key, Integer value) {
+                return value;
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Integer oldValue, Integer newValue) {
+                //在锁外回调，此时已不在缓存中
+                assertEquals(newValue != null, containsKey(key));
+                removed.add(key);
+            }
+        };
+        for(int i = 0; i < 10; i++){
+            cache.put("k" + i, 10);
+        }
+        cache.put("k0", 10);
+        assertTrue(cache.containsKey("k0"));
+        cache.remove("k1");
+        assertFalse(cache.containsKey("k1"));
+        cache.resize(30);
+        for(int i = 0; i < 10; i++){
+            assertEquals(cache.get("k" + i) != null, cache.containsKey("k" + i));
+        }
+        assertEquals(30, cache.size());
+        assertEquals(8, removed.size());
+        //比容量还大的条目放入后立即被淘汰
+        cache.put("big", 200);
+        assertFalse(cache.containsKey("big"));
+        assertEquals(0, cache.size());
+        assertEquals(12, removed.size());
+    }
+
+    @Test
+    public void lruResizeKeepsConcurrentPuts() throws InterruptedException {
+        final MemoryCache<String, Integer> cache = new LruMemoryCache<String, Integer>(1000);
+        Thread resizer = new Thread(){
+            @Override
+            public void run() {
+                for(int i = 0; i < 2000; i++){
+                    cache.resize(i % 2 == 0 ? 2000 : 1000);
+                }
+            }
+        };
+        resizer.start();
+        //总数不超过两种容量，没有条目会被淘汰
+        for(int i = 0; i < 1000; i++){
+            cache.put("k" + i, 1);
+        }
+        resizer.join();
+        for(int i = 0; i < 1000; i++){
+            assertTrue(cache.containsKey("k" + i));
+            assertNotNull(cache.get("k" + i));
+        }
+    }
+
+    @Test
+    public void tinyLfuBeatsLruOnScrollingTrace() {
+        int[] trace = trace();
+        double lru = hitRatio(new LruMemoryCache<Integer, Integer>(cacheSize()){
+            @Override
+            protected int sizeOf(Integer key, Integer value) {
+                return value;
+            }
+        }, trace);
+        double tinyLfu = hitRatio(new TinyLfuMemoryCache<Integer, Integer>(cacheSize(), 200){
+            @Override
+            protected int sizeOf(Integer key, Integer value) {
+                return value;
+            }
+        }, trace);
+        assertTrue(tinyLfu > lru);
+    }
+
+    private static int cacheSize() {
+        //大约能放下热门图片和一屏半的列表图片
+        return (HOT + 60) * 16;
+    }
+
+    /**
+     * 头像等热门图片(key小于HOT)反复出现，同时沿长列表向下滑动，列表图片大多只出现一次
+     */
+    private static int[] trace() {
+        Random random = new Random(3);
+        int[] trace = new int[REQUESTS];
+        int position = 0;
+        for(int i = 0; i < REQUESTS; i++){
+            if(random.nextInt(3) == 0){
+                trace[i] = random.nextInt(HOT);
+            } else {
+                //偶尔往回滑动几屏
+                if(random.nextInt(200) == 0){
+                    position = Math.max(0, position - random.nextInt(60));
+                }
+                trace[i] = HOT + position % LIST;
+                position++;
+            }
+        }
+        return trace;
+    }
+
+    private static double hitRatio(MemoryCache<Integer, Integer> cache, int[] trace) {
+        int hits = 0;
+        for(int key : trace){
+            if(cache.get(key) != null){
+                hits++;
+            } else {
+                //热门图片较小，列表图片较大
+                cache.put(key, key < HOT ? 8 : 16 + key % 8);
+            }
+        }
+        return (double) hits / trace.length;
+    }
+}
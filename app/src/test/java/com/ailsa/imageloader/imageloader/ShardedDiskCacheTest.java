@@ -0,0 +1,140 @@
+package com.ailsa.imageloader.imageloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * 分片磁盘缓存：key固定落在同一分片，旧的缓存布局会被清除，
+ * 多个线程同时写入时每次提交都能完成
+ */
+public class ShardedDiskCacheTest {
+
+    private static final int WRITERS = 4;
+    private static final int WRITES_PER_THREAD = 500;
+    private static final int VALUE_SIZE = 8 * 1024;
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = new File(System.getProperty("java.io.tmpdir"), "sharded-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if(dir.exists()){
+            DiskLruCache.deleteContents(dir);
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void keysSurviveReopen() throws Exception {
+        ShardedDiskCache cache = ShardedDiskCache.open(dir, 1, 1, Long.MAX_VALUE, 4);
+        for(int i = 0; i < 64; i++){
+            write(cache, key(i), "v" + i);
+        }
+        cache.close();
+        cache = ShardedDiskCache.open(dir, 1, 1, Long.MAX_VALUE, 4);
+        for(int i = 0; i < 64; i++){
+            DiskLruCache.Snapshot snapshot = cache.get(key(i));
+            assertEquals("v" + i, snapshot.getString(0));
+            snapshot.close();
+        }
+        //64个key按前缀平均分布到4个分片
+        for(int i = 0; i < 4; i++){
+            assertTrue(new File(dir, "4." + i).isDirectory());
+        }
+        cache.close();
+    }
+
+    @Test
+    public void deletesUnshardedAndStaleLayouts() throws Exception {
+        DiskLruCache single = DiskLruCache.open(dir, 1, 1, Long.MAX_VALUE);
+        DiskLruCache.Editor editor = single.edit(key(1));
+        editor.set(0, "old");
+        editor.commit();
+        single.close();
+        ShardedDiskCache cache = ShardedDiskCache.open(dir, 1, 1, Long.MAX_VALUE, 2);
+        cache.close();
+        cache = ShardedDiskCache.open(dir, 1, 1, Long.MAX_VALUE, 4);
+        assertNull(cache.get(key(1)));
+        String[] names = dir.list();
+        assertEquals(4, names.length);
+        for(String name : names){
+            assertTrue(name, name.startsWith("4."));
+        }
+        cache.close();
+    }
+
+    @Test
+    public void concurrentWritersAllCommit() throws Exception {
+        final ShardedDiskCache sharded = ShardedDiskCache.open(new File(dir, "sharded"), 1, 1, Long.MAX_VALUE, 4);
+        writeConcurrently(new Writer() {
+            @Override
+            public DiskLruCache.Editor edit(String key) throws IOException {
+                return sharded.edit(key);
+            }
+        });
+        assertEquals((long) WRITERS * WRITES_PER_THREAD * VALUE_SIZE, sharded.size());
+        for(int i = 0; i < WRITERS * WRITES_PER_THREAD; i++){
+            DiskLruCache.Snapshot snapshot = sharded.get(key(i));
+            assertNotNull(snapshot);
+            snapshot.close();
+        }
+        sharded.close();
+    }
+
+    interface Writer {
+        DiskLruCache.Editor edit(String key) throws IOException;
+    }
+
+    private void writeConcurrently(final Writer writer) throws Exception {
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(WRITERS);
+        final byte[] value = new byte[VALUE_SIZE];
+        for(int t = 0; t < WRITERS; t++){
+            final int thread = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for(int i = 0; i < WRITES_PER_THREAD; i++){
+                            DiskLruCache.Editor editor = writer.edit(key(thread * WRITES_PER_THREAD + i));
+                            OutputStream os = editor.newOutputStream(0);
+                            os.write(value);
+                            os.close();
+                            editor.commit();
+                        }
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        assertEquals(0, failures.get());
+    }
+
+    private static String key(int i){
+        //与ImageLoader.hashKey一样是十六进制串，前缀分布均匀
+        return String.format("%08x%024x", i * 0x9E3779B1, i);
+    }
+
+    private static void write(ShardedDiskCache cache, String key, String value) throws IOException {
+        DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, value);
+        editor.commit();
+    }
+}